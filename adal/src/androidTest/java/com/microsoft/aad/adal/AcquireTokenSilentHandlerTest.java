@@ -32,6 +32,7 @@ import androidx.test.filters.SmallTest;
 
 import com.microsoft.aad.adal.AuthenticationRequest.UserIdentifierType;
 import com.microsoft.identity.common.adal.internal.AuthenticationConstants;
+import com.microsoft.identity.common.adal.internal.net.HttpUrlConnectionFactory;
 import com.microsoft.identity.common.adal.internal.net.HttpWebResponse;
 import com.microsoft.identity.common.adal.internal.net.IWebRequestHandler;
 import com.microsoft.identity.common.adal.internal.net.WebRequestHandler;
@@ -47,18 +48,26 @@ import org.junit.runner.RunWith;
 import org.mockito.AdditionalMatchers;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
@@ -122,6 +131,8 @@ public final class AcquireTokenSilentHandlerTest {
     @After
     public void tearDown() {
         AuthorityValidationMetadataCache.clearAuthorityValidationCache();
+        AuthenticationSettings.INSTANCE.setUseStaleWhileRevalidate(false);
+        HttpUrlConnectionFactory.setMockedHttpUrlConnection(null);
     }
 
     /**
@@ -352,6 +363,117 @@ public final class AcquireTokenSilentHandlerTest {
         clearCache(mockedCache);
     }
 
+    /**
+     * A valid access token is returned without fetching the refresh token entries.
+     */
+    @Test
+    public void testValidATDoesNotPrefetchRefreshTokens() throws AuthenticationException {
+        final FileMockContext mockContext = new FileMockContext(getContext());
+        final ITokenCacheStore mockedCache = Mockito.spy(new MemoryTokenCacheStore());
+        final String resource = "resource";
+        final String clientId = "clientId";
+
+        final TokenCacheItem validTokenCacheItem = Util.getTokenCacheItem(VALID_AUTHORITY, resource, clientId, TEST_IDTOKEN_USERID, TEST_IDTOKEN_UPN);
+        validTokenCacheItem.setExpiresOn(new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)));
+        saveTokenIntoCache(mockedCache, validTokenCacheItem);
+
+        final AuthenticationRequest authenticationRequest = getAuthenticationRequest(VALID_AUTHORITY, resource, clientId, false);
+        authenticationRequest.setUserIdentifierType(UserIdentifierType.UniqueId);
+        authenticationRequest.setUserId(TEST_IDTOKEN_USERID);
+        final AcquireTokenSilentHandler acquireTokenSilentHandler = getAcquireTokenHandler(mockContext,
+                authenticationRequest, mockedCache);
+
+        assertEquals(validTokenCacheItem.getAccessToken(), acquireTokenSilentHandler.getAccessToken().getAccessToken());
+        Mockito.verify(mockedCache, Mockito.never()).getItems(Mockito.<String>anyCollection());
+    }
+
+    /**
+     * With stale while revalidate, the access token within the expiration buffer is returned
+     * without a network call, and a single background refresh updates the cache for concurrent callers.
+     */
+    @Test
+    public void testStaleWhileRevalidate() throws IOException, JSONException, InterruptedException {
+        AuthenticationSettings.INSTANCE.setUseStaleWhileRevalidate(true);
+        final FileMockContext mockContext = new FileMockContext(getContext());
+        final ITokenCacheStore mockedCache = new MemoryTokenCacheStore();
+        final String resource = "resource";
+        final String clientId = "clientId";
+
+        // Access token expiring within the expiration buffer
+        final TokenCacheItem staleTokenCacheItem = Util.getTokenCacheItem(VALID_AUTHORITY, resource, clientId, TEST_IDTOKEN_USERID, TEST_IDTOKEN_UPN);
+        staleTokenCacheItem.setAccessToken("stale access token");
+        staleTokenCacheItem.setExpiresOn(new Date(System.currentTimeMillis()
+                + AuthenticationSettings.INSTANCE.getExpirationBuffer() * 1000L / 2));
+        saveTokenIntoCache(mockedCache, staleTokenCacheItem);
+
+        // The background refresh is held until every caller got its result
+        final CountDownLatch callersDone = new CountDownLatch(1);
+        final AtomicInteger refreshCount = new AtomicInteger();
+        final HttpURLConnection mockedConnection = Mockito.mock(HttpURLConnection.class);
+        Util.prepareMockedUrlConnection(mockedConnection);
+        Mockito.when(mockedConnection.getOutputStream()).thenReturn(Mockito.mock(OutputStream.class));
+        Mockito.when(mockedConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        final String tokenResponse = Util.getSuccessTokenResponse(false, false);
+        Mockito.when(mockedConnection.getInputStream()).thenAnswer(new Answer<InputStream>() {
+            @Override
+            public InputStream answer(final InvocationOnMock invocation) throws Throwable {
+                refreshCount.incrementAndGet();
+                callersDone.await();
+                return Util.createInputStream(tokenResponse);
+            }
+        });
+
+        final int callerCount = 3;
+        final IWebRequestHandler mockedWebRequestHandler = Mockito.mock(WebRequestHandler.class);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(callerCount);
+        final List<AuthenticationResult> results = new ArrayList<>();
+        for (int i = 0; i < callerCount; i++) {
+            final AuthenticationRequest authenticationRequest = getAuthenticationRequest(VALID_AUTHORITY, resource, clientId, false);
+            authenticationRequest.setUserIdentifierType(UserIdentifierType.UniqueId);
+            authenticationRequest.setUserId(TEST_IDTOKEN_USERID);
+            final AcquireTokenSilentHandler acquireTokenSilentHandler = getAcquireTokenHandler(mockContext,
+                    authenticationRequest, mockedCache);
+            acquireTokenSilentHandler.setWebRequestHandler(mockedWebRequestHandler);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        final AuthenticationResult result = acquireTokenSilentHandler.getAccessToken();
+                        synchronized (results) {
+                            results.add(result);
+                        }
+                    } catch (final InterruptedException | AuthenticationException exception) {
+                        Logger.e("Test", "Silent request failed", exception);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        start.countDown();
+        assertTrue(done.await(1, TimeUnit.MINUTES));
+        assertEquals(callerCount, results.size());
+        for (final AuthenticationResult result : results) {
+            assertEquals("stale access token", result.getAccessToken());
+        }
+        Mockito.verifyZeroInteractions(mockedWebRequestHandler);
+        callersDone.countDown();
+
+        // Wait for the background refresh to update the cache
+        final String key = CacheKey.createCacheKeyForRTEntry(VALID_AUTHORITY, resource, clientId, TEST_IDTOKEN_USERID);
+        final long deadlineMillis = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+        while (!"I am a new access token".equals(mockedCache.getItem(key).getAccessToken())
+                && System.currentTimeMillis() < deadlineMillis) {
+            Thread.sleep(50);
+        }
+
+        assertEquals("I am a new access token", mockedCache.getItem(key).getAccessToken());
+        assertEquals(1, refreshCount.get());
+    }
+
     /**
      * Test only when MRRT without FoCI in the cache.
      */
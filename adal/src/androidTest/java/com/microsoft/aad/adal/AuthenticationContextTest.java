@@ -79,6 +79,7 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -2048,6 +2049,118 @@ public final class AuthenticationContextTest {
         clearCache(context);
     }
 
+    /**
+     * Test for verifying a valid access token in the cache is returned on the calling thread.
+     */
+    @Test
+    public void testAcquireTokenSilentSyncCacheHitOnCallingThread() throws InterruptedException,
+            AuthenticationException {
+        final FileMockContext mockContext = new FileMockContext(getInstrumentation().getContext());
+        final String tokenToTest = "accessToken=" + UUID.randomUUID();
+        final String resource = "Resource" + UUID.randomUUID();
+        final Set<Thread> lookupThreads = Collections.synchronizedSet(new HashSet<Thread>());
+        final ITokenCacheStore mockCache = new MemoryTokenCacheStore() {
+            @Override
+            public TokenCacheItem getItem(final String key) {
+                lookupThreads.add(Thread.currentThread());
+                return super.getItem(key);
+            }
+        };
+
+        final TestCacheItem newItem = new TestCacheItem();
+        newItem.setToken(tokenToTest);
+        newItem.setRefreshToken("refreshToken");
+        newItem.setAuthority(VALID_AUTHORITY);
+        newItem.setResource(resource);
+        newItem.setClientId("clientId");
+        newItem.setUserId("userId124");
+        newItem.setName("name");
+        newItem.setFamilyName("familyName");
+        newItem.setDisplayId("userA");
+        newItem.setTenantId("tenantId");
+        newItem.setMultiResource(false);
+
+        addItemToCache(mockCache, newItem);
+        lookupThreads.clear();
+        final AuthenticationContext context = getAuthenticationContext(mockContext,
+                VALID_AUTHORITY, false, mockCache);
+
+        final AuthenticationResult result = context.acquireTokenSilentSync(resource, "clientId", "userId124");
+        assertEquals("Same access token in cache", tokenToTest, result.getAccessToken());
+        assertEquals("Looked up on the calling thread only", Collections.singleton(Thread.currentThread()),
+                lookupThreads);
+        clearCache(context);
+    }
+
+    /**
+     * Test for verifying a store of the app is not read on the calling thread with a single request thread.
+     */
+    @Test
+    public void testAcquireTokenSilentSyncCustomStoreNotReadOnCallingThread() throws InterruptedException,
+            AuthenticationException {
+        AuthenticationSettings.INSTANCE.setRequestThreadPoolSize(1);
+        final FileMockContext mockContext = new FileMockContext(getInstrumentation().getContext());
+        final String tokenToTest = "accessToken=" + UUID.randomUUID();
+        final String resource = "Resource" + UUID.randomUUID();
+        final Set<Thread> lookupThreads = Collections.synchronizedSet(new HashSet<Thread>());
+        final MemoryTokenCacheStore store = new MemoryTokenCacheStore();
+        final ITokenCacheStore mockCache = new ITokenCacheStore() {
+            @Override
+            public TokenCacheItem getItem(final String key) {
+                lookupThreads.add(Thread.currentThread());
+                return store.getItem(key);
+            }
+
+            @Override
+            public Iterator<TokenCacheItem> getAll() {
+                return store.getAll();
+            }
+
+            @Override
+            public boolean contains(final String key) {
+                return store.contains(key);
+            }
+
+            @Override
+            public void setItem(final String key, final TokenCacheItem item) {
+                store.setItem(key, item);
+            }
+
+            @Override
+            public void removeItem(final String key) {
+                store.removeItem(key);
+            }
+
+            @Override
+            public void removeAll() {
+                store.removeAll();
+            }
+        };
+
+        final TestCacheItem newItem = new TestCacheItem();
+        newItem.setToken(tokenToTest);
+        newItem.setRefreshToken("refreshToken");
+        newItem.setAuthority(VALID_AUTHORITY);
+        newItem.setResource(resource);
+        newItem.setClientId("clientId");
+        newItem.setUserId("userId124");
+        newItem.setName("name");
+        newItem.setFamilyName("familyName");
+        newItem.setDisplayId("userA");
+        newItem.setTenantId("tenantId");
+        newItem.setMultiResource(false);
+
+        addItemToCache(mockCache, newItem);
+        lookupThreads.clear();
+        final AuthenticationContext context = getAuthenticationContext(mockContext,
+                VALID_AUTHORITY, false, mockCache);
+
+        final AuthenticationResult result = context.acquireTokenSilentSync(resource, "clientId", "userId124");
+        assertEquals("Same access token in cache", tokenToTest, result.getAccessToken());
+        assertFalse("Not looked up on the calling thread", lookupThreads.contains(Thread.currentThread()));
+        clearCache(context);
+    }
+
     /**
      * Test for verifying the userid in the request is different from what's in the cache.
      */
@@ -23,15 +23,20 @@
 
 package com.microsoft.aad.adal;
 
+import androidx.test.InstrumentationRegistry;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.List;
 import java.util.UUID;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(AndroidJUnit4.class)
 public class AuthenticationRequestTests {
@@ -87,6 +92,24 @@ public class AuthenticationRequestTests {
         assertEquals("Same RequestId", REQUEST_ID, request.getRequestId());
     }
 
+    @Test
+    public void testCopyIsIndependent() {
+        final AuthenticationRequest request = new AuthenticationRequest("authority1", "resource2", "client3",
+                "userid4", UUID.randomUUID(), true);
+        request.setSilent(true);
+        final AuthenticationRequest copy = new AuthenticationRequest(request);
+        copy.setAuthority("authority5");
+
+        assertEquals("authority1", request.getAuthority());
+        assertEquals("authority5", copy.getAuthority());
+        assertEquals(request.getResource(), copy.getResource());
+        assertEquals(request.getClientId(), copy.getClientId());
+        assertEquals(request.getUserId(), copy.getUserId());
+        assertEquals(request.getCorrelationId(), copy.getCorrelationId());
+        assertTrue(copy.getIsExtendedLifetimeEnabled());
+        assertTrue(copy.isSilent());
+    }
+
     @Test
     public void testGetUpnSuffix() {
         AuthenticationRequest authenticationRequest =
@@ -114,4 +137,71 @@ public class AuthenticationRequestTests {
                 );
         assertEquals(null, authenticationRequest.getUpnSuffix());
     }
+
+    @Test
+    public void testSilentRequestCoalescing() {
+        final ITokenCacheStore cache = new MemoryTokenCacheStore();
+        final AuthenticationRequest request = createSilentRequest(false);
+        final SilentRequestCoalescer.Key key = SilentRequestCoalescer.getKey(request, cache);
+        assertNotNull(key);
+        assertEquals(key, SilentRequestCoalescer.getKey(createSilentRequest(false), cache));
+        assertFalse("requests served from another cache are never coalesced",
+                key.equals(SilentRequestCoalescer.getKey(createSilentRequest(false), new MemoryTokenCacheStore())));
+        assertNull("force refresh is never coalesced", SilentRequestCoalescer.getKey(createSilentRequest(true), cache));
+        request.setSilent(false);
+        assertNull("interactive requests are never coalesced", SilentRequestCoalescer.getKey(request, cache));
+
+        final AuthenticationCallback<AuthenticationResult> callback = new AuthenticationCallback<AuthenticationResult>() {
+            @Override
+            public void onSuccess(final AuthenticationResult result) {
+            }
+
+            @Override
+            public void onError(final Exception exc) {
+            }
+        };
+        final SilentRequestCoalescer coalescer = SilentRequestCoalescer.getInstance();
+        final List<AuthenticationCallback<AuthenticationResult>> callbacks = coalescer.start(key, callback);
+        assertNotNull(callbacks);
+        assertNull(coalescer.start(key, callback));
+        assertNull(coalescer.start(key, callback));
+        assertEquals(2, coalescer.complete(key, callbacks).size());
+
+        // Completed, the next identical request is performed again
+        assertTrue(coalescer.complete(key, callbacks).isEmpty());
+        final List<AuthenticationCallback<AuthenticationResult>> nextCallbacks = coalescer.start(key, callback);
+        assertNotNull(nextCallbacks);
+        assertNull(coalescer.start(key, callback));
+
+        // A late completion of the previous request leaves the new one in flight
+        assertTrue(coalescer.complete(key, callbacks).isEmpty());
+        assertNull(coalescer.start(key, callback));
+        assertEquals(2, coalescer.complete(key, nextCallbacks).size());
+    }
+
+    @Test
+    public void testSilentRequestCoalescingAcrossContextsOnDefaultCache() {
+        final AuthenticationContext firstContext = new AuthenticationContext(
+                InstrumentationRegistry.getTargetContext(), "https://login.windows.net/common", false);
+        final AuthenticationContext secondContext = new AuthenticationContext(
+                InstrumentationRegistry.getTargetContext(), "https://login.windows.net/common", false);
+        assertFalse(firstContext.getCache() == secondContext.getCache());
+
+        final SilentRequestCoalescer.Key key = SilentRequestCoalescer.getKey(createSilentRequest(false),
+                firstContext.getCache());
+        assertNotNull(key);
+        assertEquals("every default cache of the app is the same cache", key,
+                SilentRequestCoalescer.getKey(createSilentRequest(false), secondContext.getCache()));
+        assertEquals(key.hashCode(),
+                SilentRequestCoalescer.getKey(createSilentRequest(false), secondContext.getCache()).hashCode());
+        assertFalse(key.equals(SilentRequestCoalescer.getKey(createSilentRequest(false), new MemoryTokenCacheStore())));
+    }
+
+    private static AuthenticationRequest createSilentRequest(final boolean forceRefresh) {
+        final AuthenticationRequest request = new AuthenticationRequest("authority", "resource", "client",
+                "userid", UUID.randomUUID(), false, forceRefresh, null);
+        request.setSilent(true);
+        request.setUserIdentifierType(UserIdentifierType.UniqueId);
+        return request;
+    }
 }
@@ -30,6 +30,13 @@ import junit.framework.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -86,4 +93,86 @@ public class AuthenticationSettingsTests {
         // Now it should be disable
         assertEquals("isWebViewHardwareAccelerated", false, AuthenticationSettings.INSTANCE.getDisableWebViewHardwareAcceleration());
     }
+
+    @Test
+    public void testRequestThreadPoolSize() throws InterruptedException {
+        assertEquals(1, AuthenticationSettings.INSTANCE.getRequestThreadPoolSize());
+
+        try {
+            AuthenticationSettings.INSTANCE.setRequestThreadPoolSize(0);
+            Assert.fail("not expected");
+        } catch (Exception exc) {
+            assertTrue("argument exception", exc instanceof IllegalArgumentException);
+        }
+
+        AuthenticationSettings.INSTANCE.setRequestThreadPoolSize(2);
+        try {
+            final TokenRequestExecutor executor = TokenRequestExecutor.getInstance();
+
+            // Unrelated tasks run in parallel, each waits for the other one to start
+            final CountDownLatch started = new CountDownLatch(2);
+            final CountDownLatch done = new CountDownLatch(2);
+            for (final String key : new String[]{"keyA", "keyB"}) {
+                executor.execute(key, new Runnable() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+                        try {
+                            if (started.await(5, TimeUnit.SECONDS)) {
+                                done.countDown();
+                            }
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+
+            // Tasks of the same key run in submission order
+            final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+            final CountDownLatch ordered = new CountDownLatch(5);
+            for (int i = 0; i < 5; i++) {
+                final int index = i;
+                executor.execute("keyA", new Runnable() {
+                    @Override
+                    public void run() {
+                        order.add(index);
+                        ordered.countDown();
+                    }
+                });
+            }
+            assertTrue(ordered.await(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList(0, 1, 2, 3, 4), order);
+            assertEquals(0, executor.getQueueDepth());
+        } finally {
+            AuthenticationSettings.INSTANCE.setRequestThreadPoolSize(1);
+        }
+    }
+
+    @Test
+    public void testRefreshAheadWindow() {
+        assertEquals(0, AuthenticationSettings.INSTANCE.getRefreshAheadWindow());
+
+        try {
+            AuthenticationSettings.INSTANCE.setRefreshAheadWindow(-1);
+            Assert.fail("not expected");
+        } catch (Exception exc) {
+            assertTrue("argument exception", exc instanceof IllegalArgumentException);
+        }
+
+        // Refreshed the window plus a jitter of up to a quarter of it before the expiration buffer
+        final int window = 600;
+        final long expiresIn = 3600 * 1000;
+        final long latestDelay = expiresIn - (AuthenticationSettings.INSTANCE.getExpirationBuffer() + window) * 1000L;
+        for (int i = 0; i < 10; i++) {
+            final long delay = RefreshAheadScheduler.getInstance().getRefreshDelayMillis(
+                    System.currentTimeMillis() + expiresIn, window);
+            assertTrue(delay <= latestDelay);
+            assertTrue(delay >= latestDelay - window * 1000L / 4 - 1000);
+        }
+
+        // Already within the window
+        assertEquals(0, RefreshAheadScheduler.getInstance().getRefreshDelayMillis(System.currentTimeMillis(), window));
+    }
 }
@@ -32,9 +32,12 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -228,4 +231,26 @@ public abstract class BaseTokenStoreTests extends AndroidTestHelper {
         TokenCacheItem item = store.getItem(CacheKey.createCacheKey(mTestItem));
         assertNull("Token cache item is expected to be null", item);
     }
+
+    @Test
+    public void testSetItemsAndRemoveItems() throws AuthenticationException {
+        // each test method will get new tokencachestore instance
+        ITokenCacheStore store = setupItems();
+        store.removeAll();
+
+        final Map<String, TokenCacheItem> items = new LinkedHashMap<>();
+        items.put(CacheKey.createCacheKey(mTestItem), mTestItem);
+        items.put(CacheKey.createCacheKey(mTestItemMultiResourceUser2), mTestItemMultiResourceUser2);
+        store.setItems(items);
+
+        TokenCacheItem item = store.getItem(CacheKey.createCacheKey(mTestItem));
+        assertNotNull("Token cache item is expected to be NOT null", item);
+        assertEquals("token", item.getAccessToken());
+        item = store.getItem(CacheKey.createCacheKey(mTestItemMultiResourceUser2));
+        assertNotNull("Token cache item is expected to be NOT null", item);
+
+        store.removeItems(items.keySet());
+        assertFalse(store.contains(CacheKey.createCacheKey(mTestItem)));
+        assertFalse(store.contains(CacheKey.createCacheKey(mTestItemMultiResourceUser2)));
+    }
 }
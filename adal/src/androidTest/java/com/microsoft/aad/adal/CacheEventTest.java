@@ -33,6 +33,8 @@ import org.junit.runner.RunWith;
 import java.util.HashMap;
 import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 @RunWith(AndroidJUnit4.class)
@@ -84,4 +86,20 @@ public final class CacheEventTest {
         assertTrue(dispatchMap.isEmpty());
     }
 
+    @Test
+    public void testCompactionEvent() {
+        final CacheEvent event = new CacheEvent(EventStrings.TOKEN_CACHE_COMPACTION);
+        event.setCompactionResult(10, 3, 2048);
+
+        final Map<String, String> dispatchMap = new HashMap();
+        event.processEvent(dispatchMap);
+
+        assertEquals("10", dispatchMap.get(EventStrings.CACHE_COMPACTION_SCANNED_COUNT));
+        assertEquals("3", dispatchMap.get(EventStrings.CACHE_COMPACTION_REMOVED_COUNT));
+        assertEquals("2048", dispatchMap.get(EventStrings.CACHE_COMPACTION_RECLAIMED_BYTES));
+
+        // Not counted as a cache lookup
+        assertFalse(dispatchMap.containsKey(EventStrings.CACHE_EVENT_COUNT));
+    }
+
 }
@@ -25,6 +25,8 @@ package com.microsoft.aad.adal;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
+import com.microsoft.identity.common.adal.internal.util.StringExtensions;
+
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -152,4 +154,30 @@ public class CacheKeyTests {
             fail("Non-expected exception");
         }
     }
+
+    @Test
+    public void testCacheKeyBuilderMemoizesKeys() {
+        final CacheKeyBuilder keyBuilder = new CacheKeyBuilder();
+
+        final String rtKey = keyBuilder.createCacheKeyForRTEntry("Authority", "Resource", "ClientId", "User");
+        assertEquals(CacheKey.createCacheKeyForRTEntry("Authority", "Resource", "ClientId", "User"), rtKey);
+        Assert.assertSame(rtKey, keyBuilder.createCacheKeyForRTEntry("Authority", "Resource", "ClientId", "User"));
+
+        final String mrrtKey = keyBuilder.createCacheKeyForMRRT("Authority", "ClientId", "User");
+        assertEquals(CacheKey.createCacheKeyForMRRT("Authority", "ClientId", "User"), mrrtKey);
+        Assert.assertSame(mrrtKey, keyBuilder.createCacheKeyForMRRT("Authority", "ClientId", "User"));
+
+        // Same components for a different entry type give a different key
+        final String frtKey = keyBuilder.createCacheKeyForFRT("Authority", "ClientId", "User");
+        assertEquals(CacheKey.createCacheKeyForFRT("Authority", "ClientId", "User"), frtKey);
+        assertTrue(!frtKey.equals(mrrtKey));
+
+        assertEquals(CacheKey.createCacheKeyForRTEntry("Authority", "Resource", "ClientId", null),
+                keyBuilder.createCacheKeyForRTEntry("Authority", "Resource", "ClientId", null));
+
+        final String uniqueIdentifier = keyBuilder.getUniqueIdentifier("userId", "tenantId");
+        assertEquals(StringExtensions.base64UrlEncodeToString("userId") + "."
+                + StringExtensions.base64UrlEncodeToString("tenantId"), uniqueIdentifier);
+        Assert.assertSame(uniqueIdentifier, keyBuilder.getUniqueIdentifier("userId", "tenantId"));
+    }
 }
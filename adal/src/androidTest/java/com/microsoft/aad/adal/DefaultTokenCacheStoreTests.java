@@ -30,6 +30,8 @@ import android.content.SharedPreferences;
 import androidx.test.InstrumentationRegistry;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.microsoft.identity.common.adal.internal.cache.StorageHelper;
 
 import org.junit.After;
@@ -39,22 +41,34 @@ import org.junit.runner.RunWith;
 import org.mockito.Mockito;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.crypto.NoSuchPaddingException;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -94,6 +108,70 @@ public class DefaultTokenCacheStoreTests extends BaseTokenStoreTests {
         assertNotNull("Has item", item);
     }
 
+    @Test
+    public void testConcurrentDecryptThroughStore() throws InterruptedException, ExecutionException {
+        final DefaultTokenCacheStore store = new DefaultTokenCacheStore(getContext());
+        store.removeAll();
+
+        final int itemCount = 16;
+        for (int i = 0; i < itemCount; i++) {
+            final TokenCacheItem item = new TokenCacheItem();
+            item.setAccessToken("token" + i);
+            item.setClientId("clientid");
+            store.setItem("concurrentkey" + i, item);
+        }
+
+        // Every read decrypts, the in-memory layer being off by default
+        final int threadCount = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            final List<Future<Boolean>> results = new ArrayList<>();
+            for (int thread = 0; thread < threadCount; thread++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        for (int i = 0; i < itemCount; i++) {
+                            final TokenCacheItem item = store.getItem("concurrentkey" + i);
+                            if (item == null || !("token" + i).equals(item.getAccessToken())) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+
+            for (final Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testGetAllWithKeyFilter() throws AuthenticationException {
+        final DefaultTokenCacheStore store = (DefaultTokenCacheStore) setupItems();
+        final String acceptedKey = CacheKey.createCacheKey(getTestItem());
+
+        final Iterator<TokenCacheItem> results = store.getAll(new DefaultTokenCacheStore.KeyFilter() {
+            @Override
+            public boolean accept(final String key) {
+                return acceptedKey.equals(key);
+            }
+        });
+
+        assertTrue(results.hasNext());
+        assertEquals("token", results.next().getAccessToken());
+        assertFalse(results.hasNext());
+        try {
+            results.next();
+            fail("Expected NoSuchElementException");
+        } catch (final NoSuchElementException exception) {
+            // expected
+        }
+    }
+
     @Test
     public void testGetUniqueUsers() throws AuthenticationException {
         DefaultTokenCacheStore store = (DefaultTokenCacheStore) setupItems();
@@ -140,6 +218,101 @@ public class DefaultTokenCacheStoreTests extends BaseTokenStoreTests {
         return cache;
     }
 
+    @Test
+    public void testInMemoryTokenCacheDecryptsOncePerBlob() throws GeneralSecurityException, IOException {
+        final StorageHelper mockSecure = Mockito.mock(StorageHelper.class);
+        final Context mockContext = mock(Context.class);
+        final SharedPreferences prefs = mock(SharedPreferences.class);
+        when(prefs.contains("memorykey")).thenReturn(true);
+        when(prefs.getString("memorykey", null)).thenReturn("memory_encrypted");
+        when(mockSecure.decrypt("memory_encrypted")).thenReturn("{\"mClientId\":\"clientId23\"}");
+        when(mockSecure.decrypt("memory_encrypted_updated")).thenReturn("{\"mClientId\":\"clientId24\"}");
+        when(mockContext.getSharedPreferences("com.microsoft.aad.adal.cache", Activity.MODE_PRIVATE)).thenReturn(prefs);
+        final DefaultTokenCacheStore cache = new DefaultTokenCacheStore(mockContext) {
+            @Override
+            protected StorageHelper getStorageHelper() {
+                return mockSecure;
+            }
+        };
+
+        AuthenticationSettings.INSTANCE.setUseInMemoryTokenCache(true);
+        try {
+            assertEquals("clientId23", cache.getItem("memorykey").getClientId());
+            final TokenCacheItem item = cache.getItem("memorykey");
+            assertEquals("clientId23", item.getClientId());
+            Mockito.verify(mockSecure, Mockito.times(1)).decrypt("memory_encrypted");
+
+            // Returned items are copies, mutating them does not leak into the memory layer.
+            item.setClientId("mutated");
+            assertEquals("clientId23", cache.getItem("memorykey").getClientId());
+
+            // Blob changed outside of the store, it has to be decrypted again.
+            when(prefs.getString("memorykey", null)).thenReturn("memory_encrypted_updated");
+            assertEquals("clientId24", cache.getItem("memorykey").getClientId());
+            Mockito.verify(mockSecure, Mockito.times(1)).decrypt("memory_encrypted_updated");
+        } finally {
+            AuthenticationSettings.INSTANCE.setUseInMemoryTokenCache(false);
+        }
+    }
+
+    @Test
+    public void testWarmUpDecryptsIntoInMemoryTokenCache() throws GeneralSecurityException, IOException {
+        final StorageHelper mockSecure = Mockito.mock(StorageHelper.class);
+        final Context mockContext = mock(Context.class);
+        final SharedPreferences prefs = mock(SharedPreferences.class);
+        final Map<String, String> entries = new HashMap<>();
+        entries.put("warmupkey", "warmup_encrypted");
+        Mockito.doReturn(entries).when(prefs).getAll();
+        when(prefs.contains("warmupkey")).thenReturn(true);
+        when(prefs.getString("warmupkey", null)).thenReturn("warmup_encrypted");
+        when(mockSecure.decrypt("warmup_encrypted")).thenReturn("{\"mClientId\":\"clientId25\"}");
+        when(mockContext.getSharedPreferences("com.microsoft.aad.adal.cache", Activity.MODE_PRIVATE)).thenReturn(prefs);
+        when(mockContext.getPackageName()).thenReturn("warmup.package");
+        final DefaultTokenCacheStore cache = new DefaultTokenCacheStore(mockContext) {
+            @Override
+            protected StorageHelper getStorageHelper() {
+                return mockSecure;
+            }
+        };
+
+        AuthenticationSettings.INSTANCE.setUseInMemoryTokenCache(true);
+        try {
+            cache.warmUp();
+            Mockito.verify(mockSecure, Mockito.times(1)).decrypt("warmup_encrypted");
+            Mockito.verify(mockSecure, Mockito.never()).encrypt(Mockito.anyString());
+
+            // The request finds the item already decrypted
+            assertEquals("clientId25", cache.getItem("warmupkey").getClientId());
+            Mockito.verify(mockSecure, Mockito.times(1)).decrypt("warmup_encrypted");
+        } finally {
+            AuthenticationSettings.INSTANCE.setUseInMemoryTokenCache(false);
+        }
+    }
+
+    @Test
+    public void testInMemoryTokenCacheDropsKeysChangedByAnotherProcess() {
+        final Context mockContext = mock(Context.class);
+        final SharedPreferences prefs = mock(SharedPreferences.class);
+        final DecryptedTokenCache cache = DecryptedTokenCache.getInstance("sibling.package", mockContext,
+                "com.microsoft.aad.adal.cache", prefs);
+        final TokenCacheItem item = new TokenCacheItem();
+        item.setClientId("clientId26");
+        cache.put("changedkey", "changed_encrypted", item);
+        cache.put("unchangedkey", "unchanged_encrypted", item);
+
+        // Reloaded file after a sibling app rewrote one key
+        final SharedPreferences reloaded = mock(SharedPreferences.class);
+        final Map<String, String> persisted = new HashMap<>();
+        persisted.put("changedkey", "changed_encrypted_by_sibling");
+        persisted.put("unchangedkey", "unchanged_encrypted");
+        Mockito.doReturn(persisted).when(reloaded).getAll();
+        cache.onFileChanged(reloaded);
+
+        assertNull(cache.get("changedkey", "changed_encrypted"));
+        assertEquals("clientId26", cache.get("unchangedkey", "unchanged_encrypted").getClientId());
+        cache.clear();
+    }
+
     @Test
     public void testDateTimeFormatterLocaleChange() throws AuthenticationException {
         final DefaultTokenCacheStore store = (DefaultTokenCacheStore) setupItems();
@@ -197,6 +370,256 @@ public class DefaultTokenCacheStoreTests extends BaseTokenStoreTests {
         assertEquals("token size", 2, tokens.size());
     }
 
+    @Test
+    public void testQueriesReflectEntriesRemovedOutsideOfStore() throws AuthenticationException {
+        final DefaultTokenCacheStore store = (DefaultTokenCacheStore) setupItems();
+        assertEquals("token size", 2, store.getTokensForUser("userid1").size());
+        assertEquals("token size", 1, store.getTokensForResource("resource").size());
+
+        // Remove the entry without going through the store, the indexes need to catch up.
+        InstrumentationRegistry.getTargetContext()
+                .getSharedPreferences("com.microsoft.aad.adal.cache", Activity.MODE_PRIVATE)
+                .edit()
+                .remove(CacheKey.createCacheKey(getTestItem()))
+                .commit();
+        // Change notifications are delivered on the main thread.
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+
+        assertEquals("token size", 1, store.getTokensForUser("userid1").size());
+        assertEquals("token size", 0, store.getTokensForResource("resource").size());
+        assertEquals("user size", 2, store.getUniqueUsersWithTokenCache().size());
+    }
+
+    @Test
+    public void testCompactFormatReadsJsonAndUpgradesOnWrite() throws AuthenticationException {
+        final DefaultTokenCacheStore store = (DefaultTokenCacheStore) setupItems();
+        final String key = CacheKey.createCacheKey(getTestItem());
+        final TokenCacheItem jsonItem = store.getItem(key);
+
+        AuthenticationSettings.INSTANCE.setUseCompactTokenCacheFormat(true);
+        try {
+            // Entries written as JSON are still readable
+            final TokenCacheItem item = store.getItem(key);
+            assertEquals(jsonItem.getAccessToken(), item.getAccessToken());
+
+            final String jsonBlob = InstrumentationRegistry.getTargetContext()
+                    .getSharedPreferences("com.microsoft.aad.adal.cache", Activity.MODE_PRIVATE)
+                    .getString(key, null);
+            store.setItem(key, item);
+            final String compactBlob = InstrumentationRegistry.getTargetContext()
+                    .getSharedPreferences("com.microsoft.aad.adal.cache", Activity.MODE_PRIVATE)
+                    .getString(key, null);
+            assertTrue("Compact blob is smaller", compactBlob.length() < jsonBlob.length());
+
+            final TokenCacheItem compactItem = new DefaultTokenCacheStore(InstrumentationRegistry.getTargetContext())
+                    .getItem(key);
+            assertEquals(item.getAccessToken(), compactItem.getAccessToken());
+            assertEquals(item.getRefreshToken(), compactItem.getRefreshToken());
+            assertEquals(item.getResource(), compactItem.getResource());
+            assertEquals(item.getExpiresOn(), compactItem.getExpiresOn());
+            assertEquals(item.getUserInfo().getUserId(), compactItem.getUserInfo().getUserId());
+            assertEquals(item.getUserInfo().getDisplayableId(), compactItem.getUserInfo().getDisplayableId());
+        } finally {
+            AuthenticationSettings.INSTANCE.setUseCompactTokenCacheFormat(false);
+        }
+    }
+
+    @Test
+    public void testCompactFormatEncryptsBytes() throws IOException {
+        final UserInfo user = new UserInfo("userid", "Zo\u00eb", "J\u00f8rgensen", "identity", "userid");
+        final TokenCacheItem item = createCompactionItem("https://login.windows.net/common", "resource",
+                user, "refreshToken", new Date(), new Date());
+
+        final byte[] encoded = TokenCacheItemCodec.encode(item);
+        final byte[] stringEncoded = TokenCacheItemCodec.encodeAsString(item).getBytes("UTF-8");
+        assertTrue("Bytes are not expanded", encoded.length < stringEncoded.length);
+
+        // Items written as a string are still readable once decrypted as bytes
+        for (final byte[] value : new byte[][]{encoded, stringEncoded}) {
+            final TokenCacheItem decoded = TokenCacheItemCodec.decode(value);
+            assertEquals(item.getRefreshToken(), decoded.getRefreshToken());
+            assertEquals(item.getExpiresOn(), decoded.getExpiresOn());
+            assertEquals("Zo\u00eb", decoded.getUserInfo().getGivenName());
+            assertEquals("J\u00f8rgensen", decoded.getUserInfo().getFamilyName());
+        }
+    }
+
+    @Test
+    public void testStreamingAdapterMatchesReflectiveJson() throws UnsupportedEncodingException {
+        final StringBuilder rawIdToken = new StringBuilder(Util.getIdToken());
+        while (rawIdToken.length() < 4096) {
+            rawIdToken.append("<a&b='c'>");
+        }
+
+        final TokenCacheItem item = new TokenCacheItem();
+        item.setAuthority("https://login.windows.net/common");
+        item.setClientId("clientid");
+        item.setResource("resource");
+        item.setAccessToken("token");
+        item.setRefreshToken("refreshToken");
+        item.setRawIdToken(rawIdToken.toString());
+        item.setExpiresOn(new Date());
+        item.setTokenUpdateTime(new Date());
+        item.setIsMultiResourceRefreshToken(true);
+        item.setUserInfo(new UserInfo("userid", "givenName", "familyName", "idp", "displayableId"));
+
+        final Gson reflective = new GsonBuilder()
+                .registerTypeAdapter(Date.class, new DateTimeAdapter())
+                .create();
+        final Gson streaming = new GsonBuilder()
+                .registerTypeAdapter(Date.class, new DateTimeAdapter())
+                .registerTypeAdapterFactory(new TokenCacheItemTypeAdapterFactory())
+                .create();
+
+        final String json = reflective.toJson(item);
+        assertEquals(json, streaming.toJson(item));
+
+        final TokenCacheItem parsed = streaming.fromJson(json, TokenCacheItem.class);
+        assertEquals(json, reflective.toJson(parsed));
+    }
+
+    @Test
+    public void testShardedCacheMovesEntriesOutOfSingleFile() throws AuthenticationException {
+        // Written to the single file before sharding is enabled
+        final DefaultTokenCacheStore singleFileStore = (DefaultTokenCacheStore) setupItems();
+        final String key = CacheKey.createCacheKey(getTestItem());
+        final SharedPreferences singleFile = InstrumentationRegistry.getTargetContext()
+                .getSharedPreferences("com.microsoft.aad.adal.cache", Activity.MODE_PRIVATE);
+        final int itemCount = singleFile.getAll().size();
+
+        AuthenticationSettings.INSTANCE.setUseShardedTokenCache(true);
+        final DefaultTokenCacheStore store = new DefaultTokenCacheStore(InstrumentationRegistry.getTargetContext());
+        try {
+            assertTrue(store.contains(key));
+            assertEquals(getTestItem().getAccessToken(), store.getItem(key).getAccessToken());
+            assertFalse("Read entry is moved to its shard", singleFile.contains(key));
+            final SharedPreferences shard = InstrumentationRegistry.getTargetContext()
+                    .getSharedPreferences("com.microsoft.aad.adal.cache.shard" + DefaultTokenCacheStore.getShard(key),
+                            Activity.MODE_PRIVATE);
+            assertTrue(shard.contains(key));
+
+            // Entries in either place are enumerated once
+            int count = 0;
+            final Iterator<TokenCacheItem> items = store.getAll();
+            while (items.hasNext()) {
+                items.next();
+                count++;
+            }
+            assertEquals(itemCount, count);
+
+            // New writes go to the shard only
+            final TokenCacheItem item = getTestItem2();
+            final String key2 = CacheKey.createCacheKey(item);
+            store.setItem(key2, item);
+            assertFalse(singleFile.contains(key2));
+            assertEquals(item.getAccessToken(), store.getItem(key2).getAccessToken());
+
+            store.removeItem(key);
+            assertFalse(store.contains(key));
+            assertFalse(singleFileStore.contains(key));
+        } finally {
+            store.removeAll();
+            AuthenticationSettings.INSTANCE.setUseShardedTokenCache(false);
+        }
+    }
+
+    @Test
+    public void testShardOfCacheKeyDependsOnAuthorityAndUser() {
+        assertEquals(DefaultTokenCacheStore.getShard("authority$resource1$clientid$n$user1"),
+                DefaultTokenCacheStore.getShard("authority$resource2$clientid$n$user1"));
+        assertEquals(DefaultTokenCacheStore.getShard("authority$null$clientid$y$user1"),
+                DefaultTokenCacheStore.getShard("authority$resource1$clientid2$n$user1"));
+    }
+
+    @Test
+    public void testCompactionRemovesDeadEntries() throws AuthenticationException {
+        final DefaultTokenCacheStore store = new DefaultTokenCacheStore(InstrumentationRegistry.getTargetContext());
+        store.removeAll();
+        final UserInfo user = new UserInfo("userid", "givenName", "familyName", "identity", "userid");
+        final Date expired = new Date(System.currentTimeMillis() - 60 * 1000);
+        final Date valid = new Date(System.currentTimeMillis() + 60 * 60 * 1000);
+
+        final TokenCacheItem expiredAccessToken = createCompactionItem("https://login.windows.net/common",
+                "resource1", user, null, expired, expired);
+        final TokenCacheItem validRefreshToken = createCompactionItem("https://login.windows.net/common",
+                "resource2", user, "rt_current", valid, valid);
+        final TokenCacheItem supersededRefreshToken = createCompactionItem("https://login.windows.net/common",
+                "resource3", user, "rt_old", expired, new Date(System.currentTimeMillis() - 120 * 1000));
+        final TokenCacheItem multiResourceRefreshToken = createCompactionItem("https://login.windows.net/common",
+                null, user, "rt_current", valid, valid);
+        multiResourceRefreshToken.setIsMultiResourceRefreshToken(true);
+        final TokenCacheItem aliasDuplicate = createCompactionItem("https://sts.windows.net/common",
+                "resource2", user, "rt_current", valid, valid);
+
+        final Map<String, TokenCacheItem> items = new HashMap<>();
+        for (final TokenCacheItem item : new TokenCacheItem[]{expiredAccessToken, validRefreshToken,
+                supersededRefreshToken, multiResourceRefreshToken, aliasDuplicate}) {
+            items.put(CacheKey.createCacheKey(item), item);
+        }
+        store.setItems(items);
+
+        AuthorityValidationMetadataCache.updateInstanceDiscoveryMap("sts.windows.net",
+                new InstanceDiscoveryMetadata("login.windows.net", "login.windows.net"));
+        try {
+            assertTrue(new TokenCacheCompactor(store).compact() > 0);
+
+            assertFalse(store.contains(CacheKey.createCacheKey(expiredAccessToken)));
+            assertFalse(store.contains(CacheKey.createCacheKey(supersededRefreshToken)));
+            assertFalse(store.contains(CacheKey.createCacheKey(aliasDuplicate)));
+            assertTrue(store.contains(CacheKey.createCacheKey(validRefreshToken)));
+            assertTrue(store.contains(CacheKey.createCacheKey(multiResourceRefreshToken)));
+
+            // Nothing left to reclaim
+            assertEquals(0, new TokenCacheCompactor(store).compact());
+        } finally {
+            AuthorityValidationMetadataCache.clearAuthorityValidationCache();
+            store.removeAll();
+        }
+    }
+
+    private static TokenCacheItem createCompactionItem(final String authority, final String resource,
+                                                       final UserInfo user, final String refreshToken,
+                                                       final Date expiresOn, final Date tokenUpdateTime) {
+        final TokenCacheItem item = new TokenCacheItem();
+        item.setAuthority(authority);
+        item.setResource(resource);
+        item.setClientId("clientid");
+        item.setUserInfo(user);
+        item.setAccessToken("token");
+        item.setRefreshToken(refreshToken);
+        item.setExpiresOn(expiresOn);
+        item.setTokenUpdateTime(tokenUpdateTime);
+        return item;
+    }
+
+    @Test
+    public void testIndexCountsMatchingEntries() throws AuthenticationException {
+        final DefaultTokenCacheStore store = (DefaultTokenCacheStore) setupItems();
+
+        // The second item is stored for both users.
+        assertEquals(2, store.getSyncedIndex().getRegularTokenCount(TEST_AUTHORITY2.toLowerCase(Locale.US), "CLIENTID2", "resource2"));
+        assertEquals(1, store.getSyncedIndex().getRegularTokenCount("authority", "clientid", "resource"));
+        assertEquals(1, store.getSyncedIndex().getMultiResourceTokenCount(TEST_AUTHORITY2, "clientid2"));
+
+        store.removeItem(CacheKey.createCacheKey(getTestItemMultiResourceUser2()));
+        assertEquals(0, store.getSyncedIndex().getMultiResourceTokenCount(TEST_AUTHORITY2, "clientid2"));
+    }
+
+    @Test
+    public void testSyncedIndexOnlyReconcilesAfterOutsideChange() throws AuthenticationException {
+        final DefaultTokenCacheStore store = (DefaultTokenCacheStore) setupItems();
+        final TokenCacheIndex index = store.getSyncedIndex();
+        assertTrue(index.isSynced());
+
+        store.removeItem(CacheKey.createCacheKey(getTestItemMultiResourceUser2()));
+        assertEquals(0, store.getSyncedIndex().getMultiResourceTokenCount(TEST_AUTHORITY2, "clientid2"));
+
+        store.onItemsWrittenOutsideOfStore();
+        assertFalse(index.isSynced());
+        assertEquals(0, store.getSyncedIndex().getMultiResourceTokenCount(TEST_AUTHORITY2, "clientid2"));
+        assertTrue(index.isSynced());
+    }
+
     @Test
     public void testExpiringTokens() throws NoSuchAlgorithmException, NoSuchPaddingException, AuthenticationException {
         final DefaultTokenCacheStore store = (DefaultTokenCacheStore) setupItems();
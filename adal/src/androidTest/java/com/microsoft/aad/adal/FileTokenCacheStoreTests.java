@@ -148,6 +148,64 @@ public class FileTokenCacheStoreTests extends AndroidTestHelper {
         assertTrue("Verify message ", logger.getLogMessage().contains(msgToCheck));
     }
 
+    @Test
+    public void testLoadingFromLegacyCacheFile() throws Exception {
+        final String file = FILE_DEFAULT_NAME + "testLoadingFromLegacyCacheFile";
+        final TokenCacheItem item = new TokenCacheItem();
+        item.setAccessToken("token");
+        item.setAuthority("authority");
+        item.setClientId("clientid");
+        item.setResource("resource");
+        final MemoryTokenCacheStore legacyStore = new MemoryTokenCacheStore();
+        legacyStore.setItem(CacheKey.createCacheKey(item), item);
+
+        final File directory = mTargetContex.getDir(mTargetContex.getPackageName(), Context.MODE_PRIVATE);
+        final FileOutputStream outputStream = new FileOutputStream(new File(directory, file));
+        final ObjectOutputStream objectStream = new ObjectOutputStream(outputStream);
+        objectStream.writeObject(legacyStore);
+        objectStream.close();
+
+        final ITokenCacheStore store = new FileTokenCacheStore(mTargetContex, file);
+        assertNotNull(store.getItem(CacheKey.createCacheKey(item)));
+
+        // The file is rewritten in the journal format and keeps accepting writes
+        store.removeItem(CacheKey.createCacheKey(item));
+        item.setResource("resource2");
+        store.setItem(CacheKey.createCacheKey(item), item);
+
+        final ITokenCacheStore reloadedStore = new FileTokenCacheStore(mTargetContex, file);
+        assertFalse(reloadedStore.contains(CacheKey.createCacheKey("authority", "resource", "clientid",
+                false, null, null)));
+        final TokenCacheItem reloadedItem = reloadedStore.getItem(CacheKey.createCacheKey(item));
+        assertNotNull(reloadedItem);
+        assertEquals("token", reloadedItem.getAccessToken());
+        reloadedStore.removeAll();
+    }
+
+    @Test
+    public void testWriteBehindPersistsOnFlush() throws AuthenticationException {
+        final String file = FILE_DEFAULT_NAME + "testWriteBehindPersistsOnFlush";
+        new FileTokenCacheStore(mTargetContex, file).removeAll();
+
+        final FileTokenCacheStore store = new FileTokenCacheStore(mTargetContex, file, 60 * 1000);
+        final TokenCacheItem item = new TokenCacheItem();
+        item.setAccessToken("token");
+        item.setAuthority("authority");
+        item.setClientId("clientid");
+        item.setResource("resource");
+        final String key = CacheKey.createCacheKey(item);
+        store.setItem(key, item);
+        assertNotNull("Write is visible in memory", store.getItem(key));
+        assertNull("Write is not persisted yet", new FileTokenCacheStore(mTargetContex, file).getItem(key));
+
+        store.flush();
+        assertNotNull("Write is persisted", new FileTokenCacheStore(mTargetContex, file).getItem(key));
+
+        store.removeItem(key);
+        store.removeAll();
+        assertFalse("removeAll is persisted", new FileTokenCacheStore(mTargetContex, file).contains(key));
+    }
+
     @Test
     public void testGetItem() throws AuthenticationException {
         String file = FILE_DEFAULT_NAME + "testGetItem";
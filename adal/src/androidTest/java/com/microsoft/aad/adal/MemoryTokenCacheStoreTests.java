@@ -36,12 +36,17 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.concurrent.CountDownLatch;
 
 import javax.crypto.NoSuchPaddingException;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(AndroidJUnit4.class)
 public class MemoryTokenCacheStoreTests extends BaseTokenStoreTests {
@@ -141,6 +146,52 @@ public class MemoryTokenCacheStoreTests extends BaseTokenStoreTests {
         assertNull("Token cache item is expected to be null", item);
     }
 
+    @Test
+    public void testGetAllWhileModifying() throws NoSuchAlgorithmException, NoSuchPaddingException,
+            AuthenticationException {
+        final ITokenCacheStore store = setupItems();
+
+        int count = 0;
+        final Iterator<TokenCacheItem> iterator = store.getAll();
+        while (iterator.hasNext()) {
+            assertNotNull(iterator.next());
+            store.removeItem(CacheKey.createCacheKey(getTestItem()));
+            store.setItem(CacheKey.createCacheKey(getTestItem2()), getTestItem2());
+            count++;
+        }
+
+        assertTrue("Iterator should return the remaining items", count > 0);
+    }
+
+    @Test
+    public void testBoundedStoreEvictsLeastRecentlyUsedAndExpiredItems() {
+        final MemoryTokenCacheStore store = new MemoryTokenCacheStore(2);
+        final Date expired = new Date(System.currentTimeMillis() - 60 * 1000);
+        final TokenCacheItem expiredItem = new TokenCacheItem();
+        expiredItem.setAccessToken("token");
+        expiredItem.setExpiresOn(expired);
+        expiredItem.setExtendedExpiresOn(expired);
+        final TokenCacheItem liveItem = new TokenCacheItem();
+        liveItem.setRefreshToken("refreshToken");
+        liveItem.setExpiresOn(expired);
+
+        store.setItem("key1", liveItem);
+        store.setItem("key2", liveItem);
+        assertNotNull(store.getItem("key1"));
+        store.setItem("key3", liveItem);
+
+        assertNull("Least recently used item is evicted", store.getItem("key2"));
+        assertTrue(store.contains("key1"));
+        assertTrue(store.contains("key3"));
+        assertEquals(1, store.getEvictionCount());
+
+        store.setItem("key4", expiredItem);
+        assertEquals(1, store.removeExpiredItems());
+        assertFalse(store.contains("key4"));
+        assertTrue("Items with refresh token are kept", store.contains("key3"));
+        assertEquals(1, store.getExpiredItemRemovalCount());
+    }
+
     /**
      * memory cache is shared between context
      *
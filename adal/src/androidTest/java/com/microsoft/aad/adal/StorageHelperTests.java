@@ -45,6 +45,13 @@ import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
@@ -215,6 +222,38 @@ public class StorageHelperTests extends AndroidTestHelper {
         Logger.d(TAG, "Finished testEncryptSameText");
     }
 
+    @Test
+    public void testConcurrentEncryptDecrypt() throws InterruptedException {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final StorageHelper storageHelper = new StorageHelper(context);
+        final int threadCount = 8;
+        final int iterations = 50;
+        final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        final List<Future<Void>> results = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            final String clearText = "SomeValue" + i;
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int j = 0; j < iterations; j++) {
+                        assertEquals("Same as initial text", clearText,
+                                storageHelper.decrypt(storageHelper.encrypt(clearText)));
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        executor.shutdown();
+        try {
+            for (final Future<Void> result : results) {
+                result.get();
+            }
+        } catch (final ExecutionException exception) {
+            throw new AssertionError(exception.getCause());
+        }
+    }
+
     @Test
     public void testTampering() throws GeneralSecurityException, IOException, AuthenticationException {
         final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
@@ -27,6 +27,7 @@ import static com.microsoft.identity.common.internal.cache.SharedPreferencesAcco
 import static org.junit.Assert.assertEquals;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.util.Base64;
 
 import androidx.test.core.app.ApplicationProvider;
@@ -61,6 +62,7 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.Mockito;
 
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -69,6 +71,8 @@ import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
@@ -298,6 +302,138 @@ public class TokenCacheAccessorTests {
         assertEquals(MOONCAKE_AUTHORITY, mTokenCacheAccessor.getAuthorityUrlWithPreferredCache());
     }
 
+    @Test
+    public void testPrefetchedItemsAnswerSilentLookups() throws MalformedURLException {
+        final MemoryTokenCacheStore store = Mockito.spy(new MemoryTokenCacheStore());
+        final TokenCacheAccessor tokenCacheAccessor = new TokenCacheAccessor(
+                mContext,
+                store,
+                WORLDWIDE_AUTHORITY,
+                UUID.randomUUID().toString()
+        );
+
+        final TokenCacheItem item = new TokenCacheItem();
+        item.setRefreshToken(MOCK_RT);
+        store.setItem(CacheKey.createCacheKeyForRTEntry(tokenCacheAccessor.getAuthorityUrlWithPreferredCache(),
+                RESOURCE, CLIENT, null), item);
+
+        tokenCacheAccessor.prefetchSilentLookupItems(RESOURCE, CLIENT, null);
+        assertEquals(MOCK_RT, tokenCacheAccessor.getRegularRefreshTokenCacheItem(RESOURCE, CLIENT, null).getRefreshToken());
+        Assert.assertNull(tokenCacheAccessor.getMRRTItem(CLIENT, null));
+
+        Mockito.verify(store, Mockito.times(1)).getItems(Mockito.<String>anyCollection());
+        Mockito.verify(store, Mockito.never()).getItem(Mockito.anyString());
+    }
+
+    @Test
+    public void testATWithinExpirationBuffer() throws AuthenticationException {
+        final MemoryTokenCacheStore store = new MemoryTokenCacheStore();
+        final TokenCacheAccessor tokenCacheAccessor = new TokenCacheAccessor(
+                mContext,
+                store,
+                WORLDWIDE_AUTHORITY,
+                UUID.randomUUID().toString()
+        );
+        final String key = CacheKey.createCacheKeyForRTEntry(tokenCacheAccessor.getAuthorityUrlWithPreferredCache(),
+                RESOURCE, CLIENT, null);
+
+        // Expiring within the expiration buffer
+        final TokenCacheItem item = new TokenCacheItem();
+        item.setAccessToken(MOCK_AT);
+        item.setRefreshToken(MOCK_RT);
+        item.setExpiresOn(new Date(System.currentTimeMillis()
+                + AuthenticationSettings.INSTANCE.getExpirationBuffer() * 1000L / 2));
+        store.setItem(key, item);
+
+        Assert.assertNull(tokenCacheAccessor.getATFromCache(RESOURCE, CLIENT, null));
+        assertEquals(MOCK_AT, tokenCacheAccessor.getATWithinExpirationBuffer(RESOURCE, CLIENT, null).getAccessToken());
+
+        // Expired
+        item.setExpiresOn(new Date(System.currentTimeMillis() - 1000));
+        store.setItem(key, item);
+        Assert.assertNull(tokenCacheAccessor.getATWithinExpirationBuffer(RESOURCE, CLIENT, null));
+    }
+
+    /**
+     * Tokens refreshed through the common cache are written to the single preferences file, they
+     * must win over the copies already moved to the shards.
+     */
+    @Test
+    public void testShardedCacheReadsTokensWrittenThroughDelegatingCache() throws MalformedURLException {
+        AuthenticationSettings.INSTANCE.setUseShardedTokenCache(true);
+        final DefaultTokenCacheStore store = new DefaultTokenCacheStore(mContext);
+        store.removeAll();
+        try {
+            final TokenCacheAccessor tokenCacheAccessor = new TokenCacheAccessor(
+                    mContext,
+                    new DelegatingCache(mContext, store),
+                    WORLDWIDE_AUTHORITY,
+                    UUID.randomUUID().toString()
+            );
+            final AuthenticationRequest request =
+                    new AuthenticationRequest(
+                            WORLDWIDE_AUTHORITY,
+                            RESOURCE,
+                            CLIENT,
+                            REDIRECT,
+                            "",
+                            PromptBehavior.Auto,
+                            "",
+                            UUID.randomUUID(),
+                            false,
+                            null
+                    );
+
+            tokenCacheAccessor.updateTokenCache(request, createResult(MOCK_AT));
+            final SharedPreferences singleFile = mContext.getSharedPreferences("com.microsoft.aad.adal.cache",
+                    Context.MODE_PRIVATE);
+            final Set<String> keys = new HashSet<>();
+            for (final String key : singleFile.getAll().keySet()) {
+                // Moves the entry to its shard
+                final TokenCacheItem item = store.getItem(key);
+                if (item != null && MOCK_AT.equals(item.getAccessToken())) {
+                    keys.add(key);
+                }
+            }
+            Assert.assertFalse(keys.isEmpty());
+
+            final String refreshedAccessToken = "refreshed_at";
+            tokenCacheAccessor.updateTokenCache(request, createResult(refreshedAccessToken));
+            for (final String key : keys) {
+                assertEquals(refreshedAccessToken, store.getItem(key).getAccessToken());
+            }
+        } finally {
+            store.removeAll();
+            AuthenticationSettings.INSTANCE.setUseShardedTokenCache(false);
+        }
+    }
+
+    private static AuthenticationResult createResult(final String accessToken) {
+        final AuthenticationResult result = new AuthenticationResult(
+                accessToken,
+                MOCK_RT,
+                new Date(System.currentTimeMillis() + (3600 * 1000)),
+                false,
+                new UserInfo(
+                        USERID_1,
+                        GIVEN_NAME,
+                        FAMILY_NAME,
+                        IDENTITY,
+                        USERID_1
+                ),
+                TID,
+                MOCK_ID_TOKEN_WITH_CLAIMS,
+                null,
+                CLIENT
+        );
+
+        result.setAuthority(WORLDWIDE_AUTHORITY);
+        result.setClientInfo(new ClientInfo(MOCK_CLIENT_INFO));
+        result.setResponseReceived(System.currentTimeMillis());
+        result.setExpiresIn(TimeUnit.HOURS.toSeconds(1));
+        return result;
+    }
+
     /**
      * This test asserts that the MSAL cache is updated by writes to the ADAL cache.
      * The ADAL class {@link TokenCacheAccessor} receives an instance of the cache supplied by the host
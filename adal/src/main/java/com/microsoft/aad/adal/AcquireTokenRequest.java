@@ -50,9 +50,8 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.util.Date;
+import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * Internal class for handling acquireToken logic, including the silent flow and interactive flow.
@@ -61,11 +60,6 @@ class AcquireTokenRequest {
 
     private static final String TAG = AcquireTokenRequest.class.getSimpleName();
 
-    /**
-     * Singled threaded Executor for async work.
-     */
-    private static final ExecutorService THREAD_EXECUTOR = Executors.newSingleThreadExecutor();
-
     private final Context mContext;
     private final AuthenticationContext mAuthContext;
     private TokenCacheAccessor mTokenCacheAccessor;
@@ -113,13 +107,32 @@ class AcquireTokenRequest {
     void acquireToken(final IWindowComponent activity, final boolean useDialog, final AuthenticationRequest authRequest,
                       final AuthenticationCallback<AuthenticationResult> authenticationCallback) {
         final String methodName = ":acquireToken";
-        final CallbackHandler callbackHandle = new CallbackHandler(getHandler(), authenticationCallback);
+        final SilentRequestCoalescer.Key coalescingKey = SilentRequestCoalescer.getKey(authRequest,
+                mAuthContext.getCache());
+        final List<AuthenticationCallback<AuthenticationResult>> coalescedCallbacks;
+        final CallbackHandler callbackHandle;
+        Logger.setCorrelationId(authRequest.getCorrelationId());
+        if (coalescingKey == null) {
+            coalescedCallbacks = null;
+            callbackHandle = new CallbackHandler(getHandler(), authenticationCallback);
+        } else {
+            final CallbackHandler requestCallbackHandle = new CallbackHandler(getHandler(), authenticationCallback);
+            coalescedCallbacks = SilentRequestCoalescer.getInstance().start(coalescingKey,
+                    createCoalescedCallback(authRequest, requestCallbackHandle));
+            if (coalescedCallbacks == null) {
+                Logger.v(TAG + methodName, "Identical silent request in flight, waiting for its result.");
+                return;
+            }
+
+            callbackHandle = new CallbackHandler(null, createCoalescingCallback(coalescingKey, coalescedCallbacks,
+                    requestCallbackHandle));
+        }
+
         // Executes all the calls inside the Runnable to return immediately to
         // user. All UI
         // related actions will be performed using Handler.
-        Logger.setCorrelationId(authRequest.getCorrelationId());
         Logger.v(TAG + methodName, "Sending async task from thread:" + android.os.Process.myTid());
-        THREAD_EXECUTOR.execute(new Runnable() {
+        TokenRequestExecutor.getInstance().execute(TokenRequestExecutor.getKey(authRequest), new Runnable() {
             @Override
             public void run() {
                 // With the introduction of DiagnosticContext, correlationIds are now tracked
@@ -142,11 +155,159 @@ class AcquireTokenRequest {
                     mAPIEvent.stopTelemetryAndFlush();
 
                     callbackHandle.onError(authenticationException);
+                } finally {
+                    if (coalescingKey != null) {
+                        // Only left if the request failed without calling back
+                        for (final AuthenticationCallback<AuthenticationResult> callback
+                                : SilentRequestCoalescer.getInstance().complete(coalescingKey, coalescedCallbacks)) {
+                            callback.onError(new AuthenticationException(ADALError.ERROR_SILENT_REQUEST,
+                                    "The identical silent request did not complete."));
+                        }
+                    }
                 }
             }
         });
     }
 
+    /**
+     * @return Callback sending the result of the request to its own callback, then to the requests
+     * attached to it through {@link SilentRequestCoalescer}.
+     */
+    private AuthenticationCallback<AuthenticationResult> createCoalescingCallback(
+            final SilentRequestCoalescer.Key coalescingKey,
+            final List<AuthenticationCallback<AuthenticationResult>> coalescedCallbacks,
+            final CallbackHandler requestCallbackHandle) {
+        return new AuthenticationCallback<AuthenticationResult>() {
+            @Override
+            public void onSuccess(final AuthenticationResult result) {
+                final List<AuthenticationCallback<AuthenticationResult>> callbacks
+                        = SilentRequestCoalescer.getInstance().complete(coalescingKey, coalescedCallbacks);
+                requestCallbackHandle.onSuccess(result);
+                for (final AuthenticationCallback<AuthenticationResult> callback : callbacks) {
+                    callback.onSuccess(result);
+                }
+            }
+
+            @Override
+            public void onError(final Exception exc) {
+                final List<AuthenticationCallback<AuthenticationResult>> callbacks
+                        = SilentRequestCoalescer.getInstance().complete(coalescingKey, coalescedCallbacks);
+                requestCallbackHandle.onError(toAuthenticationException(exc));
+                for (final AuthenticationCallback<AuthenticationResult> callback : callbacks) {
+                    callback.onError(exc);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return Callback completing the telemetry of a request attached to an identical request in
+     * flight, then sending it the result.
+     */
+    private AuthenticationCallback<AuthenticationResult> createCoalescedCallback(
+            final AuthenticationRequest authRequest, final CallbackHandler requestCallbackHandle) {
+        return new AuthenticationCallback<AuthenticationResult>() {
+            @Override
+            public void onSuccess(final AuthenticationResult result) {
+                mAPIEvent.setIsCoalesced(true);
+                mAPIEvent.setWasApiCallSuccessful(true, null);
+                mAPIEvent.setCorrelationId(authRequest.getCorrelationId().toString());
+                mAPIEvent.setIdToken(result.getIdToken());
+                mAPIEvent.stopTelemetryAndFlush();
+                requestCallbackHandle.onSuccess(result);
+            }
+
+            @Override
+            public void onError(final Exception exc) {
+                final AuthenticationException authenticationException = toAuthenticationException(exc);
+                mAPIEvent.setIsCoalesced(true);
+                mAPIEvent.setWasApiCallSuccessful(false, authenticationException);
+                mAPIEvent.setCorrelationId(authRequest.getCorrelationId().toString());
+                mAPIEvent.stopTelemetryAndFlush();
+                requestCallbackHandle.onError(authenticationException);
+            }
+        };
+    }
+
+    private static AuthenticationException toAuthenticationException(final Exception exc) {
+        if (exc instanceof AuthenticationException) {
+            return (AuthenticationException) exc;
+        }
+
+        return new AuthenticationException(ADALError.ERROR_SILENT_REQUEST, exc.getMessage(), exc);
+    }
+
+    /**
+     * Return the valid access token of a silent request from the cache on the calling thread,
+     * without going through the request executor. Only done when no network call could be needed:
+     * the authority is already validated and the request does not force the refresh or carry
+     * claims. Also only done when the cache can be read outside of the request executor, see
+     * {@link TokenRequestExecutor#isConcurrentAccessAllowed(ITokenCacheStore)}.
+     * <p>
+     * The broker is not checked, the silent flow also returns a valid access token from the cache
+     * before trying the broker. The request is left unchanged for the flow run on a miss.
+     *
+     * @return The result with the access token from the cache, or null if the request has to go
+     * through {@link #acquireToken}.
+     */
+    AuthenticationResult tryAcquireTokenFromCache(final AuthenticationRequest authRequest) {
+        final String methodName = ":tryAcquireTokenFromCache";
+        Logger.setCorrelationId(authRequest.getCorrelationId());
+        if (mTokenCacheAccessor == null || !authRequest.isSilent() || authRequest.getForceRefresh()
+                || authRequest.isClaimsChallengePresent()) {
+            return null;
+        }
+
+        // The cache is read on the caller's thread, which a store of the app may not support
+        if (!TokenRequestExecutor.isConcurrentAccessAllowed(mAuthContext.getCache())) {
+            return null;
+        }
+
+        final URL authorityUrl = StringExtensions.getUrl(authRequest.getAuthority());
+        if (authorityUrl == null || !isAuthorityValidationDone(authorityUrl)) {
+            return null;
+        }
+
+        final AuthenticationRequest cachedRequest = new AuthenticationRequest(authRequest);
+        final AuthenticationResult result;
+        try {
+            final TokenCacheItem accessTokenItem = mTokenCacheAccessor.getATFromCache(cachedRequest.getResource(),
+                    cachedRequest.getClientId(), cachedRequest.getUserFromRequest());
+            if (accessTokenItem == null || StringExtensions.isNullOrBlank(accessTokenItem.getAccessToken())) {
+                return null;
+            }
+
+            result = AuthenticationResult.createResult(accessTokenItem);
+            updatePreferredNetworkLocation(authorityUrl, cachedRequest,
+                    AuthorityValidationMetadataCache.getCachedInstanceDiscoveryMetadata(authorityUrl));
+        } catch (final AuthenticationException authenticationException) {
+            Logger.v(TAG + methodName, "Cache lookup failed, run the request. " + authenticationException.getMessage());
+            return null;
+        }
+
+        Logger.v(TAG + methodName, "Return AT from cache on thread:" + android.os.Process.myTid());
+        RefreshAheadScheduler.getInstance().onTokenReturned(mContext.getApplicationContext(), mAuthContext,
+                cachedRequest, result);
+        mAPIEvent.setWasApiCallSuccessful(true, null);
+        mAPIEvent.setCorrelationId(cachedRequest.getCorrelationId().toString());
+        mAPIEvent.setIdToken(result.getIdToken());
+        mAPIEvent.stopTelemetryAndFlush();
+        return result;
+    }
+
+    /**
+     * @return true if {@link #performAuthorityValidation} has nothing left to look up for the authority.
+     */
+    private boolean isAuthorityValidationDone(final URL authorityUrl) {
+        final boolean isAdfsAuthority = UrlExtensions.isADFSAuthority(authorityUrl);
+        if (mAuthContext.getValidateAuthority()) {
+            return AuthorityValidationMetadataCache.isAuthorityValidated(authorityUrl)
+                    || isAdfsAuthority && mAuthContext.getIsAuthorityValidated();
+        }
+
+        return isAdfsAuthority || AuthorityValidationMetadataCache.containsAuthorityHost(authorityUrl);
+    }
+
     /**
      * This API allows to obtain a new access token in exchange for a refresh token. The refresh
      * token must be provided to this API. The tokens obtained via this API may or may not be saved
@@ -168,7 +329,7 @@ class AcquireTokenRequest {
 
         // Execute all the calls inside Runnable to return immediately. All UI
         // related actions will be performed using Handler.
-        THREAD_EXECUTOR.execute(new Runnable() {
+        TokenRequestExecutor.getInstance().execute(TokenRequestExecutor.getKey(authenticationRequest), new Runnable() {
             @Override
             public void run() {
                 try {
@@ -420,6 +581,8 @@ class AcquireTokenRequest {
         final String methodName = ":performAcquireTokenRequest";
         final AuthenticationResult authenticationResultFromSilentRequest = tryAcquireTokenSilent(authenticationRequest);
         if (isAccessTokenReturned(authenticationResultFromSilentRequest)) {
+            RefreshAheadScheduler.getInstance().onTokenReturned(mContext.getApplicationContext(), mAuthContext,
+                    authenticationRequest, authenticationResultFromSilentRequest);
             mAPIEvent.setWasApiCallSuccessful(true, null);
             mAPIEvent.setCorrelationId(authenticationRequest.getCorrelationId().toString());
             mAPIEvent.setIdToken(authenticationResultFromSilentRequest.getIdToken());
@@ -995,7 +1158,8 @@ class AcquireTokenRequest {
                         // immediately to
                         // UI thread. All UI
                         // related actions will be performed using the Handler.
-                        THREAD_EXECUTOR.execute(new Runnable() {
+                        TokenRequestExecutor.getInstance().execute(
+                                TokenRequestExecutor.getKey(waitingRequest.getRequest()), new Runnable() {
 
                             @Override
                             public void run() {
@@ -110,6 +110,19 @@ class AcquireTokenSilentHandler {
                 mAuthRequest.getClientId(), mAuthRequest.getUserFromRequest());
         // If accessToken is null or if the user requested force refresh or if claims challenge is present then get a new access token using local refresh tokens
         if (accessTokenItem == null || mAuthRequest.getForceRefresh() || mAuthRequest.isClaimsChallengePresent()) {
+            final AuthenticationResult staleResult = revalidateStaleToken();
+            if (staleResult != null) {
+                return staleResult;
+            }
+
+            // Fetch every cache entry the refresh token lookups may read at once.
+            try {
+                mTokenCacheAccessor.prefetchSilentLookupItems(mAuthRequest.getResource(),
+                        mAuthRequest.getClientId(), mAuthRequest.getUserFromRequest());
+            } catch (final MalformedURLException ex) {
+                throw new AuthenticationException(ADALError.DEVELOPER_AUTHORITY_IS_NOT_VALID_URL, ex.getMessage(), ex);
+            }
+
             Logger.v(TAG + methodName, "No valid access token exists, try with refresh token.");
             return tryRT();
         }
@@ -118,6 +131,33 @@ class AcquireTokenSilentHandler {
         return AuthenticationResult.createResult(accessTokenItem);
     }
 
+    /**
+     * If stale while revalidate is enabled, return the access token which is within its expiration
+     * buffer and refresh it in the background.
+     *
+     * @return The result with the access token within the expiration buffer, null if the refresh
+     * needs to be awaited.
+     */
+    private AuthenticationResult revalidateStaleToken() throws AuthenticationException {
+        final String methodName = ":revalidateStaleToken";
+        if (!AuthenticationSettings.INSTANCE.getUseStaleWhileRevalidate() || mAuthRequest.getForceRefresh()
+                || mAuthRequest.isClaimsChallengePresent()) {
+            return null;
+        }
+
+        final TokenCacheItem staleItem = mTokenCacheAccessor.getATWithinExpirationBuffer(mAuthRequest.getResource(),
+                mAuthRequest.getClientId(), mAuthRequest.getUserFromRequest());
+        if (staleItem == null) {
+            return null;
+        }
+
+        Logger.v(TAG + methodName, "Return AT within the expiration buffer from cache, refresh it in the background.");
+        final Context appContext = mContext.getApplicationContext() != null ? mContext.getApplicationContext() : mContext;
+        RefreshAheadScheduler.getInstance().revalidate(appContext, mTokenCacheAccessor.getTokenCacheStore(),
+                mTokenCacheAccessor.isValidateAuthorityHost(), mAuthRequest);
+        return AuthenticationResult.createResult(staleItem);
+    }
+
     AuthenticationResult getAccessTokenUsingAssertion() throws AuthenticationException {
         final String methodName = ":getAccessTokenUsingAssertion";
         final AuthenticationResult result = acquireTokenWithAssertion();
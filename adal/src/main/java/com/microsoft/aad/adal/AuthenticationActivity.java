@@ -51,6 +51,7 @@ import androidx.annotation.Nullable;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.microsoft.aad.adal.AuthenticationResult.AuthenticationStatus;
 import com.microsoft.identity.common.adal.internal.JWSBuilder;
 import com.microsoft.identity.common.adal.internal.cache.StorageHelper;
@@ -1159,7 +1160,9 @@ public class AuthenticationActivity extends DualScreenActivity {
             // Encrypted Results are saved to AccountManager Service
             // sqllite database. Only Authenticator and similar UID can
             // access.
-            final Gson gson = new Gson();
+            final Gson gson = new GsonBuilder()
+                    .registerTypeAdapterFactory(new TokenCacheItemTypeAdapterFactory())
+                    .create();
 
             Logger.infoPII(
                     TAG + methodName,
@@ -117,7 +117,12 @@ public class AuthenticationContext {
         // The fixes need to be applied before any use of Java Cryptography
         // Architecture primitives. Default cache uses encryption
         PRNGFixes.apply();
-        initialize(appContext, authority, new DefaultTokenCacheStore(appContext), validateAuthority, true);
+        final DefaultTokenCacheStore tokenCacheStore = new DefaultTokenCacheStore(appContext);
+        initialize(appContext, authority, tokenCacheStore, validateAuthority, true);
+
+        if (AuthenticationSettings.INSTANCE.getWarmUpTokenCache()) {
+            tokenCacheStore.warmUpInBackground();
+        }
     }
 
     /**
@@ -741,7 +746,15 @@ public class AuthenticationContext {
                             + "This method will throw android.os.NetworkOnMainThreadException in next major release",
                     new NetworkOnMainThreadException());
         }
-        createAcquireTokenRequest(apiEvent).acquireToken(null, false, request,
+        // A valid access token in the cache is returned on the calling thread, only the requests
+        // which may need a network call go through the request executor.
+        final AcquireTokenRequest acquireTokenRequest = createAcquireTokenRequest(apiEvent);
+        final AuthenticationResult cachedResult = acquireTokenRequest.tryAcquireTokenFromCache(request);
+        if (cachedResult != null) {
+            return cachedResult;
+        }
+
+        acquireTokenRequest.acquireToken(null, false, request,
                 new AuthenticationCallback<AuthenticationResult>() {
                     @Override
                     public void onSuccess(AuthenticationResult result) {
@@ -1618,6 +1631,36 @@ public class AuthenticationContext {
         return BuildConfig.VERSION_NAME;
     }
 
+    /**
+     * Number of token requests waiting for a thread, see
+     * {@link AuthenticationSettings#setRequestThreadPoolSize(int)}.
+     *
+     * @return The number of requests waiting.
+     */
+    public static int getQueuedRequestCount() {
+        return TokenRequestExecutor.getInstance().getQueueDepth();
+    }
+
+    /**
+     * Average time token requests waited for a thread, see
+     * {@link AuthenticationSettings#setRequestThreadPoolSize(int)}.
+     *
+     * @return The average wait time in milliseconds.
+     */
+    public static long getAverageRequestWaitTimeMillis() {
+        return TokenRequestExecutor.getInstance().getAverageWaitTimeMillis();
+    }
+
+    /**
+     * Longest time a token request waited for a thread, see
+     * {@link AuthenticationSettings#setRequestThreadPoolSize(int)}.
+     *
+     * @return The longest wait time in milliseconds.
+     */
+    public static long getMaxRequestWaitTimeMillis() {
+        return TokenRequestExecutor.getInstance().getMaxWaitTimeMillis();
+    }
+
     public List<String> getClientCapabilites() {
         return mClientCapabilites;
     }
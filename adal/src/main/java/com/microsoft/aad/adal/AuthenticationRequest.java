@@ -231,6 +231,40 @@ class AuthenticationRequest implements Serializable {
         mScope = scope;
     }
 
+    /**
+     * Copy a request, so that it can be changed without affecting the original one.
+     *
+     * @param request Request to copy.
+     */
+    AuthenticationRequest(@NonNull final AuthenticationRequest request) {
+        mRequestId = request.mRequestId;
+        mAuthority = request.mAuthority;
+        mRedirectUri = request.mRedirectUri;
+        mResource = request.mResource;
+        mScope = request.mScope;
+        mClientId = request.mClientId;
+        mLoginHint = request.mLoginHint;
+        mUserId = request.mUserId;
+        mBrokerAccountName = request.mBrokerAccountName;
+        mCorrelationId = request.mCorrelationId;
+        mExtraQueryParamsAuthentication = request.mExtraQueryParamsAuthentication;
+        mPrompt = request.mPrompt;
+        mSilent = request.mSilent;
+        mVersion = request.mVersion;
+        mIdentifierType = request.mIdentifierType;
+        mIsExtendedLifetimeEnabled = request.mIsExtendedLifetimeEnabled;
+        mTelemetryRequestId = request.mTelemetryRequestId;
+        mClaimsChallenge = request.mClaimsChallenge;
+        mInstanceDiscoveryMetadata = request.mInstanceDiscoveryMetadata;
+        mForceRefresh = request.mForceRefresh;
+        mSkipCache = request.mSkipCache;
+        mAppName = request.mAppName;
+        mAppVersion = request.mAppVersion;
+        mClientCapabilities = request.mClientCapabilities;
+        mSamlAssertion = request.mSamlAssertion;
+        mAssertionType = request.mAssertionType;
+    }
+
     public boolean isClaimsChallengePresent() {
         // if developer pass claims down through extra qp, we should also skip cache.
         return !StringExtensions.isNullOrBlank(this.getClaimsChallenge());
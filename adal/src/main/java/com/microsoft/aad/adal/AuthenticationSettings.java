@@ -36,6 +36,8 @@ public enum AuthenticationSettings {
 
     private static final int DEFAULT_READ_CONNECT_TIMEOUT = 30000;
 
+    private static final int DEFAULT_REQUEST_THREAD_POOL_SIZE = 1;
+
     private Class<?> mClazzDeviceCertProxy;
 
     private String mActivityPackageName;
@@ -63,6 +65,41 @@ public enum AuthenticationSettings {
 
     private int mReadTimeOut = DEFAULT_READ_CONNECT_TIMEOUT;
 
+    /**
+     * Keep decrypted {@link TokenCacheItem}s in memory in front of {@link DefaultTokenCacheStore}.
+     */
+    private boolean mUseInMemoryTokenCache = false;
+
+    /**
+     * Write {@link TokenCacheItem}s persisted by {@link DefaultTokenCacheStore} in the compact binary format.
+     */
+    private boolean mUseCompactTokenCacheFormat = false;
+
+    /**
+     * Warm up the {@link DefaultTokenCacheStore} in the background when {@link AuthenticationContext} is created.
+     */
+    private boolean mWarmUpTokenCache = false;
+
+    /**
+     * Spread the entries of {@link DefaultTokenCacheStore} across several preferences files.
+     */
+    private boolean mUseShardedTokenCache = false;
+
+    /**
+     * Number of threads serving token requests, see {@link TokenRequestExecutor}.
+     */
+    private int mRequestThreadPoolSize = DEFAULT_REQUEST_THREAD_POOL_SIZE;
+
+    /**
+     * Seconds before expiration access tokens are refreshed in the background, 0 if they are not.
+     */
+    private int mRefreshAheadWindow = 0;
+
+    /**
+     * Whether silent requests return access tokens within their expiration buffer while they are
+     * refreshed in the background.
+     */
+    private boolean mUseStaleWhileRevalidate = false;
 
     /**
      * Get bytes to derive secretKey to use in encrypt/decrypt.
@@ -304,4 +341,185 @@ public enum AuthenticationSettings {
     public boolean getDisableWebViewHardwareAcceleration() {
         return com.microsoft.identity.common.adal.internal.AuthenticationSettings.INSTANCE.getDisableWebViewHardwareAcceleration();
     }
+
+    /**
+     * Enables an in-process layer of already decrypted {@link TokenCacheItem}s in front of
+     * {@link DefaultTokenCacheStore}. Items are written through on every change and are
+     * validated against the persisted blob on each read, so entries changed outside of the
+     * store are decrypted again. By default the layer is disabled.
+     *
+     * @param useInMemoryTokenCache true to keep decrypted items in memory, false otherwise.
+     */
+    public void setUseInMemoryTokenCache(final boolean useInMemoryTokenCache) {
+        mUseInMemoryTokenCache = useInMemoryTokenCache;
+    }
+
+    /**
+     * Checks whether decrypted {@link TokenCacheItem}s are kept in memory by
+     * {@link DefaultTokenCacheStore}.
+     *
+     * @return true if the in-memory layer is enabled, false otherwise.
+     * @see #setUseInMemoryTokenCache(boolean)
+     */
+    public boolean getUseInMemoryTokenCache() {
+        return mUseInMemoryTokenCache;
+    }
+
+    /**
+     * Makes {@link DefaultTokenCacheStore} persist {@link TokenCacheItem}s in a compact binary
+     * encoding instead of JSON. Entries in either format are always readable, and JSON entries
+     * are converted when they are next written. By default items are written as JSON.
+     * <p>
+     * Only enable it if no other component reads the ADAL cache directly, such as older ADAL
+     * versions after a downgrade or the MSAL migration of ADAL tokens.
+     *
+     * @param useCompactTokenCacheFormat true to write the compact format, false to write JSON.
+     */
+    public void setUseCompactTokenCacheFormat(final boolean useCompactTokenCacheFormat) {
+        mUseCompactTokenCacheFormat = useCompactTokenCacheFormat;
+    }
+
+    /**
+     * Checks whether {@link DefaultTokenCacheStore} writes the compact binary format.
+     *
+     * @return true if the compact format is written, false if JSON is written.
+     * @see #setUseCompactTokenCacheFormat(boolean)
+     */
+    public boolean getUseCompactTokenCacheFormat() {
+        return mUseCompactTokenCacheFormat;
+    }
+
+    /**
+     * Makes {@link AuthenticationContext#AuthenticationContext(android.content.Context, String, boolean)}
+     * start loading the encryption key of the default cache on a background thread, so that the
+     * first request does not wait for AndroidKeyStore. If the in-memory layer is enabled through
+     * {@link #setUseInMemoryTokenCache(boolean)}, persisted items are decrypted into it as well.
+     * By default the cache is loaded by the first request.
+     *
+     * @param warmUpTokenCache true to warm up the default cache in the background, false otherwise.
+     */
+    public void setWarmUpTokenCache(final boolean warmUpTokenCache) {
+        mWarmUpTokenCache = warmUpTokenCache;
+    }
+
+    /**
+     * Checks whether the default cache is warmed up in the background when
+     * {@link AuthenticationContext} is created.
+     *
+     * @return true if the default cache is warmed up, false otherwise.
+     * @see #setWarmUpTokenCache(boolean)
+     */
+    public boolean getWarmUpTokenCache() {
+        return mWarmUpTokenCache;
+    }
+
+    /**
+     * Makes {@link DefaultTokenCacheStore} partition its entries across several preferences files
+     * by authority and user, so that a write only rewrites the file of that partition instead of
+     * the whole cache. Entries of the single file are moved to their partition when they are
+     * next read or written, and win over the partition until then, as tokens saved through the
+     * common cache keep being written to the single file. Takes effect for stores created afterwards. By default every entry is
+     * kept in one file.
+     * <p>
+     * Once enabled it should stay enabled, entries moved to a partition are not visible to stores
+     * using the single file, such as older ADAL versions after a downgrade or the MSAL migration
+     * of ADAL tokens.
+     *
+     * @param useShardedTokenCache true to partition the cache, false to keep a single file.
+     */
+    public void setUseShardedTokenCache(final boolean useShardedTokenCache) {
+        mUseShardedTokenCache = useShardedTokenCache;
+    }
+
+    /**
+     * Checks whether {@link DefaultTokenCacheStore} partitions its entries across several files.
+     *
+     * @return true if the cache is partitioned, false if it is kept in a single file.
+     * @see #setUseShardedTokenCache(boolean)
+     */
+    public boolean getUseShardedTokenCache() {
+        return mUseShardedTokenCache;
+    }
+
+    /**
+     * Sets the number of threads serving token requests. Requests for the same authority, client
+     * id, resource and user are always served one after another, in the order they were made,
+     * while unrelated requests are served in parallel up to this number of threads. Applies to the
+     * requests made afterwards. Default value is 1, every request is served on a single thread.
+     * <p>
+     * With more than one thread, a {@link ITokenCacheStore} passed to {@link AuthenticationContext}
+     * is accessed concurrently and must be thread safe.
+     *
+     * @param requestThreadPoolSize the number of threads, at least 1.
+     */
+    public void setRequestThreadPoolSize(final int requestThreadPoolSize) {
+        if (requestThreadPoolSize < 1) {
+            throw new IllegalArgumentException("requestThreadPoolSize");
+        }
+
+        mRequestThreadPoolSize = requestThreadPoolSize;
+    }
+
+    /**
+     * Get the number of threads serving token requests.
+     *
+     * @return the number of threads.
+     * @see #setRequestThreadPoolSize(int)
+     */
+    public int getRequestThreadPoolSize() {
+        return mRequestThreadPoolSize;
+    }
+
+    /**
+     * Makes access tokens returned by silent requests get refreshed in the background before
+     * they expire, so that the next requests still find a valid access token in the cache. The
+     * refresh is scheduled refreshAheadWindow seconds, minus a random jitter of up to a quarter of
+     * the window, before the token is considered expired, see {@link #getExpirationBuffer()}. It
+     * uses the refresh tokens of the cache like a silent request, and a token keeps being
+     * refreshed as long as it is requested again before its next refresh. Default value is 0,
+     * access tokens are refreshed when requested after they expired.
+     *
+     * @param refreshAheadWindow the non-negative window in seconds, 0 to disable the refresh.
+     */
+    public void setRefreshAheadWindow(final int refreshAheadWindow) {
+        if (refreshAheadWindow < 0) {
+            throw new IllegalArgumentException("refreshAheadWindow");
+        }
+
+        mRefreshAheadWindow = refreshAheadWindow;
+    }
+
+    /**
+     * Get the window in seconds before expiration access tokens are refreshed in the background.
+     *
+     * @return the window in seconds, 0 if access tokens are not refreshed ahead.
+     * @see #setRefreshAheadWindow(int)
+     */
+    public int getRefreshAheadWindow() {
+        return mRefreshAheadWindow;
+    }
+
+    /**
+     * Makes silent requests return an access token which is within its expiration buffer, see
+     * {@link #getExpirationBuffer()}, but not expired yet, instead of waiting for the refresh.
+     * The token is refreshed at the same time on a background thread, which doesn't delay the
+     * other requests, a single refresh being made for concurrent requests of the same token, and
+     * the refreshed token is saved in the cache for the next requests. Requests forcing the refresh or with claims always wait for the refresh.
+     * Default value is false.
+     *
+     * @param useStaleWhileRevalidate true to return the access tokens within the expiration buffer.
+     */
+    public void setUseStaleWhileRevalidate(final boolean useStaleWhileRevalidate) {
+        mUseStaleWhileRevalidate = useStaleWhileRevalidate;
+    }
+
+    /**
+     * Get whether silent requests return access tokens within their expiration buffer.
+     *
+     * @return true if the access tokens within the expiration buffer are returned.
+     * @see #setUseStaleWhileRevalidate(boolean)
+     */
+    public boolean getUseStaleWhileRevalidate() {
+        return mUseStaleWhileRevalidate;
+    }
 }
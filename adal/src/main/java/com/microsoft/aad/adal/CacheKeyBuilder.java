@@ -0,0 +1,169 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.aad.adal;
+
+import com.microsoft.identity.common.adal.internal.util.StringExtensions;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds the {@link CacheKey}s and unique user identifiers needed while serving a request.
+ * Each value is computed once for a given set of components and then served from memory, so
+ * the lowercasing, formatting and base64 encoding are not repeated for every lookup. Looking up
+ * a value that was already built does not allocate.
+ */
+final class CacheKeyBuilder {
+
+    private static final int REGULAR_TOKEN_ENTRY = 0;
+
+    private static final int MRRT_TOKEN_ENTRY = 1;
+
+    private static final int FRT_TOKEN_ENTRY = 2;
+
+    private static final int UNIQUE_IDENTIFIER = 3;
+
+    private final Map<Components, String> mValues = new HashMap<>();
+
+    /**
+     * Reused to look up {@link #mValues}, only copied when a new value is added.
+     */
+    private final Components mProbe = new Components();
+
+    /**
+     * @see CacheKey#createCacheKeyForRTEntry(String, String, String, String)
+     */
+    synchronized String createCacheKeyForRTEntry(final String authority, final String resource,
+                                                 final String clientId, final String userId) {
+        final String cacheKey = get(REGULAR_TOKEN_ENTRY, authority, resource, clientId, userId);
+        if (cacheKey != null) {
+            return cacheKey;
+        }
+
+        return put(CacheKey.createCacheKeyForRTEntry(authority, resource, clientId, userId));
+    }
+
+    /**
+     * @see CacheKey#createCacheKeyForMRRT(String, String, String)
+     */
+    synchronized String createCacheKeyForMRRT(final String authority, final String clientId, final String userId) {
+        final String cacheKey = get(MRRT_TOKEN_ENTRY, authority, null, clientId, userId);
+        if (cacheKey != null) {
+            return cacheKey;
+        }
+
+        return put(CacheKey.createCacheKeyForMRRT(authority, clientId, userId));
+    }
+
+    /**
+     * @see CacheKey#createCacheKeyForFRT(String, String, String)
+     */
+    synchronized String createCacheKeyForFRT(final String authority, final String familyClientId, final String userId) {
+        final String cacheKey = get(FRT_TOKEN_ENTRY, authority, null, familyClientId, userId);
+        if (cacheKey != null) {
+            return cacheKey;
+        }
+
+        return put(CacheKey.createCacheKeyForFRT(authority, familyClientId, userId));
+    }
+
+    /**
+     * @return The user identifier made of the base64 encoded user id and tenant id.
+     */
+    synchronized String getUniqueIdentifier(final String userId, final String tenantId) {
+        final String uniqueIdentifier = get(UNIQUE_IDENTIFIER, null, null, userId, tenantId);
+        if (uniqueIdentifier != null) {
+            return uniqueIdentifier;
+        }
+
+        return put(StringExtensions.base64UrlEncodeToString(userId) + "." + StringExtensions.base64UrlEncodeToString(tenantId));
+    }
+
+    private String get(final int type, final String authority, final String resource, final String clientId,
+                       final String userId) {
+        mProbe.set(type, authority, resource, clientId, userId);
+        return mValues.get(mProbe);
+    }
+
+    /**
+     * Add the value for the components of the preceding {@link #get}.
+     */
+    private String put(final String value) {
+        final Components components = new Components();
+        components.set(mProbe.mType, mProbe.mAuthority, mProbe.mResource, mProbe.mClientId, mProbe.mUserId);
+        mValues.put(components, value);
+        return value;
+    }
+
+    private static final class Components {
+        private int mType;
+        private String mAuthority;
+        private String mResource;
+        private String mClientId;
+        private String mUserId;
+        private int mHashCode;
+
+        void set(final int type, final String authority, final String resource, final String clientId,
+                 final String userId) {
+            mType = type;
+            mAuthority = authority;
+            mResource = resource;
+            mClientId = clientId;
+            mUserId = userId;
+
+            int hashCode = type;
+            hashCode = 31 * hashCode + (authority == null ? 0 : authority.hashCode());
+            hashCode = 31 * hashCode + (resource == null ? 0 : resource.hashCode());
+            hashCode = 31 * hashCode + (clientId == null ? 0 : clientId.hashCode());
+            hashCode = 31 * hashCode + (userId == null ? 0 : userId.hashCode());
+            mHashCode = hashCode;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+
+            if (!(obj instanceof Components)) {
+                return false;
+            }
+
+            final Components other = (Components) obj;
+            return mType == other.mType
+                    && equals(mAuthority, other.mAuthority)
+                    && equals(mResource, other.mResource)
+                    && equals(mClientId, other.mClientId)
+                    && equals(mUserId, other.mUserId);
+        }
+
+        private static boolean equals(final String first, final String second) {
+            return first == null ? second == null : first.equals(second);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.aad.adal;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-process layer of decrypted {@link TokenCacheItem}s kept in front of the encrypted
+ * {@link DefaultTokenCacheStore} file. Every entry remembers the encrypted blob it was produced
+ * from, and a lookup only succeeds when the caller presents the same blob as currently persisted.
+ * Entries changed outside of the store are therefore never served stale, they are decrypted again.
+ * Items are copied on the way in and out since {@link TokenCacheItem} is mutable.
+ * <p>
+ * Writes made by other processes sharing the file are observed through
+ * {@link TokenCacheFileObserver}, which reloads the file and drops the entries of the changed keys.
+ */
+final class DecryptedTokenCache implements SharedPreferences.OnSharedPreferenceChangeListener,
+        TokenCacheFileObserver.Listener {
+
+    private static final String TAG = DecryptedTokenCache.class.getSimpleName();
+
+    /**
+     * One layer per backing preferences file, shared by every {@link DefaultTokenCacheStore}
+     * instance in the process. It also keeps the change listeners strongly reachable since
+     * {@link SharedPreferences} only holds weak references to them.
+     */
+    private static final Map<String, DecryptedTokenCache> CACHES = new HashMap<>();
+
+    private final ConcurrentMap<String, Entry> mEntries = new ConcurrentHashMap<>();
+
+    private final SharedPreferences mSharedPreferences;
+
+    /**
+     * Kept to stay reachable, the observer stops once it is garbage collected.
+     */
+    private TokenCacheFileObserver mFileObserver;
+
+    private DecryptedTokenCache(@NonNull final SharedPreferences sharedPreferences) {
+        mSharedPreferences = sharedPreferences;
+    }
+
+    /**
+     * Get the layer for the given preferences file, creating and registering it on first use.
+     *
+     * @param fileIdentifier    Identifies the backing file, such as the owning package name.
+     * @param context           {@link Context} owning the backing file.
+     * @param fileName          Name of the backing file, also the prefix of its shards.
+     * @param sharedPreferences The {@link SharedPreferences} backing the file.
+     * @return {@link DecryptedTokenCache} shared by the stores using that file.
+     */
+    static DecryptedTokenCache getInstance(@Nullable final String fileIdentifier,
+                                           @NonNull final Context context,
+                                           @NonNull final String fileName,
+                                           @NonNull final SharedPreferences sharedPreferences) {
+        synchronized (CACHES) {
+            DecryptedTokenCache cache = CACHES.get(fileIdentifier);
+            if (cache == null) {
+                cache = new DecryptedTokenCache(sharedPreferences);
+                sharedPreferences.registerOnSharedPreferenceChangeListener(cache);
+                cache.mFileObserver = TokenCacheFileObserver.startWatching(context, fileName, cache);
+                CACHES.put(fileIdentifier, cache);
+            }
+
+            return cache;
+        }
+    }
+
+    /**
+     * @param key            Cache key.
+     * @param encryptedValue Encrypted blob currently persisted for the key.
+     * @return A copy of the decrypted item if it was produced from the same blob, null otherwise.
+     */
+    @Nullable
+    TokenCacheItem get(@NonNull final String key, @Nullable final String encryptedValue) {
+        final Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        if (!entry.matches(encryptedValue)) {
+            mEntries.remove(key, entry);
+            return null;
+        }
+
+        return new TokenCacheItem(entry.mItem);
+    }
+
+    void put(@NonNull final String key, @NonNull final String encryptedValue, @NonNull final TokenCacheItem item) {
+        mEntries.put(key, new Entry(encryptedValue, new TokenCacheItem(item)));
+    }
+
+    void remove(@NonNull final String key) {
+        mEntries.remove(key);
+    }
+
+    void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Drops entries whose persisted blob has been replaced or removed. Writes made through
+     * {@link DefaultTokenCacheStore} store the new blob before the notification arrives, so they
+     * keep their entry.
+     */
+    @Override
+    public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences, final String key) {
+        if (key == null) {
+            // Sent when the file is cleared.
+            Logger.v(TAG, "Token cache file cleared, drop all decrypted items.");
+            clear();
+            return;
+        }
+
+        final Entry entry = mEntries.get(key);
+        if (entry != null && !entry.matches(mSharedPreferences.getString(key, null))) {
+            mEntries.remove(key, entry);
+        }
+    }
+
+    /**
+     * Drops the entries of keys rewritten by another process. Keys removed by another process
+     * are never served since the store checks the persisted blob first.
+     */
+    @Override
+    public void onFileChanged(@NonNull final SharedPreferences sharedPreferences) {
+        final Map<String, ?> persisted = sharedPreferences.getAll();
+        int invalidatedEntries = 0;
+        for (final Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+            final Object encryptedValue = persisted.get(entry.getKey());
+            if (encryptedValue instanceof String && !entry.getValue().matches((String) encryptedValue)
+                    && mEntries.remove(entry.getKey(), entry.getValue())) {
+                invalidatedEntries++;
+            }
+        }
+
+        Logger.v(TAG, "Token cache file changed, dropped " + invalidatedEntries + " decrypted items.");
+    }
+
+    private static final class Entry {
+        private final String mEncryptedValue;
+        private final TokenCacheItem mItem;
+
+        Entry(final String encryptedValue, final TokenCacheItem item) {
+            mEncryptedValue = encryptedValue;
+            mItem = item;
+        }
+
+        boolean matches(@Nullable final String encryptedValue) {
+            // Reference check first, the preferences hand out the same instance until it is rewritten.
+            return mEncryptedValue == encryptedValue //NOPMD
+                    || mEncryptedValue.equals(encryptedValue);
+        }
+    }
+}
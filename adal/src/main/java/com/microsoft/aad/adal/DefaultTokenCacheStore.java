@@ -25,9 +25,13 @@ package com.microsoft.aad.adal;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Build;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonSyntaxException;
@@ -36,16 +40,25 @@ import com.microsoft.identity.common.adal.internal.util.StringExtensions;
 import com.microsoft.identity.common.internal.cache.SharedPreferencesFileManager;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
 
 import static com.microsoft.aad.adal.ADALError.ARGUMENT_EXCEPTION;
 
@@ -61,19 +74,73 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
 
     private static final String TAG = "DefaultTokenCacheStore";
 
+    /**
+     * Number of files the cache is partitioned into when sharding is enabled.
+     */
+    private static final int SHARD_COUNT = 8;
+
+    private static final String SHARD_PREFERENCE_NAME_PREFIX = SHARED_PREFERENCE_NAME + ".shard";
+
+    private static final char CACHE_KEY_DELIMITER = '$';
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Held while writing in sharded mode so that an entry moved out of {@link #mPrefs} never
+     * overwrites a newer value written to its shard.
+     */
+    private static final Object SHARD_LOCK = new Object();
+
     private SharedPreferencesFileManager mPrefs;
 
+    /**
+     * Partitions of the cache, or null if every entry is kept in {@link #mPrefs}.
+     */
+    private transient SharedPreferencesFileManager[] mShards;
+
     private Context mContext;
 
+    /**
+     * Whether {@link #mContext} is the package context of a cache shared with another app.
+     */
+    private boolean mIsPackageContext = false;
+
     private Gson mGson = new GsonBuilder()
             .registerTypeAdapter(Date.class, new DateTimeAdapter())
+            .registerTypeAdapterFactory(new TokenCacheItemTypeAdapterFactory())
             .create();
 
     @SuppressLint("StaticFieldLeak")
     private static StorageHelper sHelper;
 
+    /**
+     * ADAL's {@link com.microsoft.aad.adal.StorageHelper} by package name of the cache, which
+     * writes the same blobs as the common library's one but decrypts without taking a lock once
+     * its keys are loaded.
+     */
+    private static final ConcurrentMap<String, com.microsoft.aad.adal.StorageHelper> LOCK_FREE_HELPERS =
+            new ConcurrentHashMap<>();
+
     private static final Object LOCK = new Object();
 
+    /**
+     * Upper bound of items decrypted by {@link #warmUp()} into the in-memory layer.
+     */
+    private static final int MAX_WARM_UP_ITEMS = 64;
+
+    private static final ExecutorService WARM_UP_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private transient DecryptedTokenCache mDecryptedCache;
+
+    private transient TokenCacheIndex mIndex;
+
+    private final transient TokenCacheIndex.ItemLoader mIndexLoader = new TokenCacheIndex.ItemLoader() {
+        @Override
+        public TokenCacheItem load(@NonNull final String key, @NonNull final String encryptedValue) {
+            return readItem(key, encryptedValue);
+        }
+    };
+
     /**
      * @param context {@link Context}
      */
@@ -95,6 +162,7 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
                 mContext = context.createPackageContext(
                         AuthenticationSettings.INSTANCE.getSharedPrefPackageName(),
                         Context.MODE_PRIVATE);
+                mIsPackageContext = true;
             } catch (NameNotFoundException e) {
                 throw new IllegalArgumentException("Package name:"
                         + AuthenticationSettings.INSTANCE.getSharedPrefPackageName()
@@ -108,6 +176,16 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
                 null
         );
 
+        if (AuthenticationSettings.INSTANCE.getUseShardedTokenCache()) {
+            mShards = new SharedPreferencesFileManager[SHARD_COUNT];
+            for (int i = 0; i < SHARD_COUNT; i++) {
+                mShards[i] = SharedPreferencesFileManager.getSharedPreferences(mContext, getShardName(i), null);
+            }
+        }
+
+        mIndex = TokenCacheIndex.getInstance(mContext.getPackageName(), getRetainableContext(),
+                SHARED_PREFERENCE_NAME, getSharedPreferences());
+
         // Check upfront when initializing DefaultTokenCacheStore. 
         // If it's under API 18 and secretkey is not provided, we should fail upfront to inform 
         // notify developers. 
@@ -118,6 +196,13 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
         return mContext.getApplicationContext();
     }
 
+    /**
+     * @return Name of the persisted cache, the same for every store reading the same preferences files.
+     */
+    String getCacheName() {
+        return mContext.getPackageName() + "/" + SHARED_PREFERENCE_NAME;
+    }
+
 
     /**
      * Method that allows to mock StorageHelper class and use custom encryption in UTs.
@@ -133,9 +218,247 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
         return sHelper;
     }
 
+    /**
+     * @return The helper encrypting the cache of {@link #mContext} without taking a lock to
+     * decrypt, or null if a subclass may provide its own encryption through {@link #getStorageHelper()}.
+     */
+    @Nullable
+    com.microsoft.aad.adal.StorageHelper getLockFreeStorageHelper() {
+        if (getClass() != DefaultTokenCacheStore.class) {
+            return null;
+        }
+
+        final String packageName = mContext.getPackageName();
+        com.microsoft.aad.adal.StorageHelper helper = LOCK_FREE_HELPERS.get(packageName);
+        if (helper == null) {
+            Logger.v(TAG, "Started to initialize lock free storage helper");
+            final com.microsoft.aad.adal.StorageHelper newHelper = new com.microsoft.aad.adal.StorageHelper(mContext);
+            helper = LOCK_FREE_HELPERS.putIfAbsent(packageName, newHelper);
+            if (helper == null) {
+                helper = newHelper;
+            }
+            Logger.v(TAG, "Finished to initialize lock free storage helper");
+        }
+
+        return helper;
+    }
+
+    /**
+     * Run {@link #warmUp()} on a background thread.
+     */
+    void warmUpInBackground() {
+        WARM_UP_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                warmUp();
+            }
+        });
+    }
+
+    /**
+     * Load the encryption key ahead of the first request by decrypting a persisted item. If the
+     * in-memory layer is enabled, persisted items are decrypted into it as well. A request racing
+     * with the warm-up waits for the key being loaded instead of loading it again.
+     */
+    void warmUp() {
+        final String methodName = ":warmUp";
+        final int maxItems = getDecryptedCache() == null ? 1 : MAX_WARM_UP_ITEMS;
+        final Map<String, String> results = getPersistedValues();
+        int decryptedItems = 0;
+        for (final Entry<String, String> entry : results.entrySet()) {
+            if (decryptedItems >= maxItems) {
+                break;
+            }
+
+            if (!StringExtensions.isNullOrBlank(entry.getValue())
+                    && readItem(entry.getKey(), entry.getValue()) != null) {
+                decryptedItems++;
+            }
+        }
+
+        if (decryptedItems == 0) {
+            // Nothing persisted yet, the key is loaded by an encryption instead
+            encrypt(TAG);
+        }
+
+        Logger.v(TAG + methodName, "Warmed up " + decryptedItems + " items.");
+    }
+
+    /**
+     * Remove, every periodMillis on a background thread, the persisted entries that can no
+     * longer be used to get a token: expired entries without refresh token, expired entries
+     * whose refresh token was superseded by a newer multi resource refresh token, and entries
+     * duplicated under the preferred cache authority of an aliased authority. The cache is
+     * scanned in bounded batches and the bytes reclaimed are reported through telemetry.
+     *
+     * @param periodMillis delay in milliseconds between two compactions.
+     * @return {@link ScheduledFuture} to cancel the compaction.
+     */
+    public ScheduledFuture<?> scheduleCompaction(final long periodMillis) {
+        return new TokenCacheCompactor(this).schedule(periodMillis);
+    }
+
+    /**
+     * @return The in-memory layer of decrypted items, or null if it's not enabled through
+     * {@link AuthenticationSettings#setUseInMemoryTokenCache(boolean)}.
+     */
+    private DecryptedTokenCache getDecryptedCache() {
+        if (!AuthenticationSettings.INSTANCE.getUseInMemoryTokenCache()) {
+            return null;
+        }
+
+        if (mDecryptedCache == null) {
+            mDecryptedCache = DecryptedTokenCache.getInstance(mContext.getPackageName(), getRetainableContext(),
+                    SHARED_PREFERENCE_NAME, getSharedPreferences());
+        }
+
+        return mDecryptedCache;
+    }
+
+    /**
+     * @return The context of the preferences files that static state can keep: the package
+     * context of a shared cache, otherwise the application context rather than a possible Activity.
+     */
+    private Context getRetainableContext() {
+        if (mIsPackageContext) {
+            return mContext;
+        }
+
+        final Context appContext = mContext.getApplicationContext();
+        return appContext != null ? appContext : mContext;
+    }
+
+    /**
+     * @return The {@link SharedPreferences} backing {@link #mPrefs}, used for batched edits.
+     */
+    private SharedPreferences getSharedPreferences() {
+        return mContext.getSharedPreferences(SHARED_PREFERENCE_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static String getShardName(final int shard) {
+        return SHARD_PREFERENCE_NAME_PREFIX + shard;
+    }
+
+    /**
+     * Stable partition of the key, from the authority and user id that start and end a
+     * {@link CacheKey}. Keys of another shape are partitioned by their whole content.
+     */
+    static int getShard(@NonNull final String key) {
+        final int authorityEnd = key.indexOf(CACHE_KEY_DELIMITER);
+        int hash = 0;
+        if (authorityEnd < 0) {
+            hash = key.hashCode();
+        } else {
+            final int userIdStart = key.lastIndexOf(CACHE_KEY_DELIMITER) + 1;
+            for (int i = 0; i < authorityEnd; i++) {
+                hash = 31 * hash + key.charAt(i);
+            }
+            for (int i = userIdStart; i < key.length(); i++) {
+                hash = 31 * hash + key.charAt(i);
+            }
+        }
+
+        return (hash & Integer.MAX_VALUE) % SHARD_COUNT;
+    }
+
+    /**
+     * @return Name of the preferences file the key is written to.
+     */
+    private String getFileName(@NonNull final String key) {
+        return mShards == null ? SHARED_PREFERENCE_NAME : getShardName(getShard(key));
+    }
+
+    /**
+     * @return The file the key is written to.
+     */
+    private SharedPreferencesFileManager getFile(@NonNull final String key) {
+        return mShards == null ? mPrefs : mShards[getShard(key)];
+    }
+
+    /**
+     * Get the persisted value of the key. In sharded mode an entry in the single file wins over
+     * its shard, as the common cache keeps writing refreshed tokens to the single file, and is
+     * moved to its shard.
+     */
+    private String getPersistedValue(@NonNull final String key) {
+        if (mShards == null) {
+            return mPrefs.getString(key);
+        }
+
+        final SharedPreferencesFileManager shard = getFile(key);
+        if (!mPrefs.contains(key)) {
+            return shard.getString(key);
+        }
+
+        synchronized (SHARD_LOCK) {
+            final String singleFileValue = mPrefs.getString(key);
+            if (singleFileValue == null) {
+                return shard.getString(key);
+            }
+
+            shard.putString(key, singleFileValue);
+            mPrefs.remove(key);
+            return singleFileValue;
+        }
+    }
+
+    /**
+     * @return Snapshot of every persisted key and value, across shards in sharded mode.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, String> getPersistedValues() {
+        final Map<String, String> values = (Map<String, String>) mPrefs.getAll();
+        if (mShards == null) {
+            return values;
+        }
+
+        // The single file wins, see getPersistedValue
+        final Map<String, String> allValues = new HashMap<>();
+        for (final SharedPreferencesFileManager shard : mShards) {
+            allValues.putAll((Map<String, String>) shard.getAll());
+        }
+        allValues.putAll(values);
+
+        return allValues;
+    }
+
+    /**
+     * @return Snapshot of every persisted key and encrypted value, see {@link TokenCacheCompactor}.
+     */
+    Map<String, String> getPersistedEntries() {
+        return getPersistedValues();
+    }
+
+    /**
+     * @return The encrypted value persisted for the key, or null if there is none.
+     */
+    String getPersistedEntry(@NonNull final String key) {
+        return getPersistedValue(key);
+    }
+
+    private SharedPreferences.Editor getEditor(@NonNull final Map<String, SharedPreferences.Editor> editors,
+                                               @NonNull final String fileName) {
+        SharedPreferences.Editor editor = editors.get(fileName);
+        if (editor == null) {
+            editor = mContext.getSharedPreferences(fileName, Context.MODE_PRIVATE).edit();
+            editors.put(fileName, editor);
+        }
+
+        return editor;
+    }
+
+    private static void commit(@NonNull final Map<String, SharedPreferences.Editor> editors) {
+        for (final SharedPreferences.Editor editor : editors.values()) {
+            if (!editor.commit()) {
+                Logger.w(TAG, "Failed to commit token cache batch. ");
+            }
+        }
+    }
+
     private String encrypt(String value) {
         try {
-            return getStorageHelper().encrypt(value);
+            final com.microsoft.aad.adal.StorageHelper helper = getLockFreeStorageHelper();
+            return helper != null ? helper.encrypt(value) : getStorageHelper().encrypt(value);
         } catch (GeneralSecurityException | IOException e) {
             Logger.e(TAG, "Encryption failure. ", "", ADALError.ENCRYPTION_FAILED, e);
         }
@@ -149,7 +472,8 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
         }
 
         try {
-            return getStorageHelper().decrypt(value);
+            final com.microsoft.aad.adal.StorageHelper helper = getLockFreeStorageHelper();
+            return helper != null ? helper.decrypt(value) : getStorageHelper().decrypt(value);
         } catch (GeneralSecurityException | IOException e) {
             Logger.e(TAG, "Decryption failure. ", "", ADALError.DECRYPTION_FAILED, e);
             removeItem(key);
@@ -164,19 +488,119 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
             throw new IllegalArgumentException("The key is null.");
         }
 
-        if (mPrefs.contains(key)) {
-            String json = mPrefs.getString(key);
+        if (contains(key)) {
+            String json = getPersistedValue(key);
             json = null != json ? json : "";
-            String decrypted = decrypt(key, json);
-            if (decrypted != null) {
-                try {
-                    return mGson.fromJson(decrypted, TokenCacheItem.class);
-                } catch (final JsonSyntaxException exception) {
-                    Logger.e(TAG, "Fail to parse Json. ", exception.getMessage(), ARGUMENT_EXCEPTION, exception);
-                }
+            return readItem(key, json);
+        }
+
+        return null;
+    }
+
+    /**
+     * Decrypt and parse the persisted value, or serve it from the in-memory layer if the
+     * same value was decrypted before.
+     */
+    private TokenCacheItem readItem(final String key, final String encryptedValue) {
+        final DecryptedTokenCache decryptedCache = getDecryptedCache();
+        if (decryptedCache != null) {
+            final TokenCacheItem cachedItem = decryptedCache.get(key, encryptedValue);
+            if (cachedItem != null) {
+                return cachedItem;
             }
         }
 
+        final TokenCacheItem item = decryptItem(key, encryptedValue);
+        if (decryptedCache != null && item != null) {
+            decryptedCache.put(key, encryptedValue, item);
+        }
+
+        return item;
+    }
+
+    /**
+     * Serialize and encrypt an item. The compact format, if enabled through
+     * {@link AuthenticationSettings#setUseCompactTokenCacheFormat(boolean)}, is encrypted as bytes,
+     * JSON as a string.
+     *
+     * @return The encrypted item, or null if the encryption failed.
+     */
+    private String encryptItem(final TokenCacheItem item) {
+        if (!AuthenticationSettings.INSTANCE.getUseCompactTokenCacheFormat()) {
+            return encrypt(mGson.toJson(item));
+        }
+
+        final com.microsoft.aad.adal.StorageHelper helper = getLockFreeStorageHelper();
+        if (helper == null) {
+            // The helper of a subclass only encrypts strings
+            return encrypt(TokenCacheItemCodec.encodeAsString(item));
+        }
+
+        try {
+            return helper.encryptBytes(TokenCacheItemCodec.encode(item));
+        } catch (GeneralSecurityException | IOException e) {
+            Logger.e(TAG, "Encryption failure. ", "", ADALError.ENCRYPTION_FAILED, e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Decrypt and parse an item persisted in either format.
+     *
+     * @return The item, or null if it can't be read.
+     */
+    private TokenCacheItem decryptItem(final String key, final String encryptedValue) {
+        final com.microsoft.aad.adal.StorageHelper helper = getLockFreeStorageHelper();
+        if (helper == null) {
+            final String decrypted = decrypt(key, encryptedValue);
+            return decrypted == null ? null : deserialize(decrypted);
+        }
+
+        if (StringExtensions.isNullOrBlank(key)) {
+            throw new IllegalArgumentException("key is null or blank");
+        }
+
+        final byte[] decrypted;
+        try {
+            decrypted = helper.decryptToBytes(encryptedValue);
+        } catch (GeneralSecurityException | IOException e) {
+            Logger.e(TAG, "Decryption failure. ", "", ADALError.DECRYPTION_FAILED, e);
+            removeItem(key);
+            return null;
+        }
+
+        if (TokenCacheItemCodec.isEncoded(decrypted)) {
+            try {
+                return TokenCacheItemCodec.decode(decrypted);
+            } catch (final IOException exception) {
+                Logger.e(TAG, "Fail to decode token cache item. ", exception.getMessage(), ARGUMENT_EXCEPTION, exception);
+                return null;
+            }
+        }
+
+        return deserialize(new String(decrypted, UTF_8));
+    }
+
+    /**
+     * Parse an item decrypted as a string, persisted in either format.
+     */
+    private TokenCacheItem deserialize(final String value) {
+        if (TokenCacheItemCodec.isEncoded(value)) {
+            try {
+                return TokenCacheItemCodec.decode(value);
+            } catch (final IOException exception) {
+                Logger.e(TAG, "Fail to decode token cache item. ", exception.getMessage(), ARGUMENT_EXCEPTION, exception);
+                return null;
+            }
+        }
+
+        try {
+            return mGson.fromJson(value, TokenCacheItem.class);
+        } catch (final JsonSyntaxException exception) {
+            Logger.e(TAG, "Fail to parse Json. ", exception.getMessage(), ARGUMENT_EXCEPTION, exception);
+        }
+
         return null;
     }
 
@@ -186,8 +610,28 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
             throw new IllegalArgumentException("key");
         }
 
-        if (mPrefs.contains(key)) {
-            mPrefs.remove(key);
+        if (mShards == null) {
+            if (mPrefs.contains(key)) {
+                mPrefs.remove(key);
+            }
+        } else {
+            synchronized (SHARD_LOCK) {
+                final SharedPreferencesFileManager shard = getFile(key);
+                if (shard.contains(key)) {
+                    shard.remove(key);
+                }
+
+                if (mPrefs.contains(key)) {
+                    mPrefs.remove(key);
+                }
+            }
+        }
+
+        mIndex.onItemRemoved(key);
+
+        final DecryptedTokenCache decryptedCache = getDecryptedCache();
+        if (decryptedCache != null) {
+            decryptedCache.remove(key);
         }
     }
 
@@ -201,53 +645,221 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
             throw new IllegalArgumentException("item");
         }
 
-        String json = mGson.toJson(item);
-        String encrypted = encrypt(json);
+        String encrypted = encryptItem(item);
         if (encrypted != null) {
-            mPrefs.putString(key, encrypted);
+            if (mShards == null) {
+                mPrefs.putString(key, encrypted);
+            } else {
+                synchronized (SHARD_LOCK) {
+                    getFile(key).putString(key, encrypted);
+                    if (mPrefs.contains(key)) {
+                        mPrefs.remove(key);
+                    }
+                }
+            }
+            mIndex.onItemSet(key, encrypted, item);
+
+            final DecryptedTokenCache decryptedCache = getDecryptedCache();
+            if (decryptedCache != null) {
+                decryptedCache.put(key, encrypted, item);
+            }
         } else {
             Logger.e(TAG, "Encrypted output is null. ", "", ADALError.ENCRYPTION_FAILED);
         }
     }
 
+    /**
+     * Encrypts every item and persists the whole batch with a single commit.
+     *
+     * @param items {@link Map} of {@link CacheKey} to cache item.
+     */
+    @Override
+    public void setItems(final Map<String, TokenCacheItem> items) {
+        if (items == null) {
+            throw new IllegalArgumentException("items");
+        }
+
+        final Map<String, String> encryptedItems = new LinkedHashMap<>(items.size());
+        for (final Entry<String, TokenCacheItem> entry : items.entrySet()) {
+            if (entry.getKey() == null) {
+                throw new IllegalArgumentException("key");
+            }
+
+            if (entry.getValue() == null) {
+                throw new IllegalArgumentException("item");
+            }
+
+            final String encrypted = encryptItem(entry.getValue());
+            if (encrypted != null) {
+                encryptedItems.put(entry.getKey(), encrypted);
+            } else {
+                Logger.e(TAG, "Encrypted output is null. ", "", ADALError.ENCRYPTION_FAILED);
+            }
+        }
+
+        if (encryptedItems.isEmpty()) {
+            return;
+        }
+
+        synchronized (SHARD_LOCK) {
+            // One commit per file touched by the batch
+            final Map<String, SharedPreferences.Editor> editors = new HashMap<>();
+            for (final Entry<String, String> entry : encryptedItems.entrySet()) {
+                getEditor(editors, getFileName(entry.getKey())).putString(entry.getKey(), entry.getValue());
+                if (mShards != null && mPrefs.contains(entry.getKey())) {
+                    getEditor(editors, SHARED_PREFERENCE_NAME).remove(entry.getKey());
+                }
+            }
+
+            commit(editors);
+        }
+
+        final DecryptedTokenCache decryptedCache = getDecryptedCache();
+        for (final Entry<String, String> entry : encryptedItems.entrySet()) {
+            final TokenCacheItem item = items.get(entry.getKey());
+            mIndex.onItemSet(entry.getKey(), entry.getValue(), item);
+            if (decryptedCache != null) {
+                decryptedCache.put(entry.getKey(), entry.getValue(), item);
+            }
+        }
+    }
+
+    /**
+     * Removes the keys and persists the whole batch with a single commit.
+     *
+     * @param keys {@link Collection} of {@link CacheKey}s to remove.
+     */
+    @Override
+    public void removeItems(final Collection<String> keys) {
+        if (keys == null) {
+            throw new IllegalArgumentException("keys");
+        }
+
+        for (final String key : keys) {
+            if (key == null) {
+                throw new IllegalArgumentException("key");
+            }
+        }
+
+        synchronized (SHARD_LOCK) {
+            // One commit per file touched by the batch
+            final Map<String, SharedPreferences.Editor> editors = new HashMap<>();
+            for (final String key : keys) {
+                getEditor(editors, getFileName(key)).remove(key);
+                if (mShards != null && mPrefs.contains(key)) {
+                    getEditor(editors, SHARED_PREFERENCE_NAME).remove(key);
+                }
+            }
+
+            commit(editors);
+        }
+
+        final DecryptedTokenCache decryptedCache = getDecryptedCache();
+        for (final String key : keys) {
+            mIndex.onItemRemoved(key);
+            if (decryptedCache != null) {
+                decryptedCache.remove(key);
+            }
+        }
+    }
+
     @Override
     public void removeAll() {
         mPrefs.clear();
+        if (mShards != null) {
+            for (final SharedPreferencesFileManager shard : mShards) {
+                shard.clear();
+            }
+        }
+        mIndex.onAllItemsRemoved();
+
+        final DecryptedTokenCache decryptedCache = getDecryptedCache();
+        if (decryptedCache != null) {
+            decryptedCache.clear();
+        }
     }
 
     // Extra helper methods can be implemented here for queries
 
     /**
-     * User can query over iterator values.
+     * Cheap predicate over the cache key, evaluated before the value is decrypted.
+     */
+    interface KeyFilter {
+        /**
+         * @param key Cache key of the persisted entry.
+         * @return true if the entry should be decrypted and returned.
+         */
+        boolean accept(String key);
+    }
+
+    /**
+     * User can query over iterator values. Entries are decrypted one by one while iterating,
+     * so callers stopping early don't pay for the rest of the cache.
      *
      * @return TokenCacheItem list iterator
      */
     @Override
     public Iterator<TokenCacheItem> getAll() {
-        @SuppressWarnings("unchecked")
-        Map<String, String> results = (Map<String, String>) mPrefs.getAll();
+        return getAll(null);
+    }
 
-        // create objects
-        final List<TokenCacheItem> tokens = new ArrayList<>(results.values().size());
+    /**
+     * Iterate the items whose cache key is accepted by the filter. Entries rejected by the
+     * filter are never decrypted.
+     *
+     * @param filter {@link KeyFilter} to apply on the keys, null to iterate every item.
+     * @return TokenCacheItem iterator
+     */
+    Iterator<TokenCacheItem> getAll(@Nullable final KeyFilter filter) {
+        final Map<String, String> results = getPersistedValues();
+        return new LazyTokenCacheItemIterator(results.entrySet().iterator(), filter);
+    }
 
-        Iterator<Entry<String, String>> tokenResultEntrySet = results.entrySet().iterator();
-        while (tokenResultEntrySet.hasNext()) {
-            final Entry<String, String> tokenEntry = tokenResultEntrySet.next();
-            final String tokenKey = tokenEntry.getKey();
-            final String tokenValue = tokenEntry.getValue();
+    /**
+     * Iterator over a snapshot of the persisted entries that decrypts each value only when
+     * the caller moves to it. Entries that cannot be decrypted or parsed are skipped.
+     */
+    private final class LazyTokenCacheItemIterator implements Iterator<TokenCacheItem> {
 
-            final String decryptedValue = decrypt(tokenKey, tokenValue);
-            if (decryptedValue != null) {
-                try {
-                    final TokenCacheItem tokenCacheItem = mGson.fromJson(decryptedValue, TokenCacheItem.class);
-                    tokens.add(tokenCacheItem);
-                } catch (final JsonSyntaxException exception) {
-                    Logger.e(TAG, "Fail to parse Json. ", exception.getMessage(), ARGUMENT_EXCEPTION, exception);
+        private final Iterator<Entry<String, String>> mEntries;
+
+        private final KeyFilter mFilter;
+
+        private TokenCacheItem mNext;
+
+        LazyTokenCacheItemIterator(final Iterator<Entry<String, String>> entries, final KeyFilter filter) {
+            mEntries = entries;
+            mFilter = filter;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (mNext == null && mEntries.hasNext()) {
+                final Entry<String, String> tokenEntry = mEntries.next();
+                final String tokenKey = tokenEntry.getKey();
+                if (mFilter == null || mFilter.accept(tokenKey)) {
+                    mNext = readItem(tokenKey, tokenEntry.getValue());
                 }
             }
+
+            return mNext != null;
+        }
+
+        @Override
+        public TokenCacheItem next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            final TokenCacheItem next = mNext;
+            mNext = null;
+            return next;
         }
 
-        return tokens.iterator();
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("remove");
+        }
     }
 
     /**
@@ -257,17 +869,7 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
      */
     @Override
     public Set<String> getUniqueUsersWithTokenCache() {
-        Iterator<TokenCacheItem> results = this.getAll();
-        final Set<String> users = new HashSet<>();
-
-        while (results.hasNext()) {
-            final TokenCacheItem tokenCacheItem = results.next();
-            if (tokenCacheItem.getUserInfo() != null && !users.contains(tokenCacheItem.getUserInfo().getUserId())) {
-                users.add(tokenCacheItem.getUserInfo().getUserId());
-            }
-        }
-
-        return users;
+        return getSyncedIndex().getUniqueUserIds();
     }
 
     /**
@@ -278,11 +880,8 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
      */
     @Override
     public List<TokenCacheItem> getTokensForResource(String resource) {
-        Iterator<TokenCacheItem> results = this.getAll();
         final List<TokenCacheItem> tokenItems = new ArrayList<>();
-
-        while (results.hasNext()) {
-            final TokenCacheItem tokenCacheItem = results.next();
+        for (final TokenCacheItem tokenCacheItem : getItems(getSyncedIndex().getKeysForResource(resource)).values()) {
             // MRRT and FRT don't store resource in the token cache item. 
             if (resource.equals(tokenCacheItem.getResource())) {
                 tokenItems.add(tokenCacheItem);
@@ -300,11 +899,8 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
      */
     @Override
     public List<TokenCacheItem> getTokensForUser(String userId) {
-        Iterator<TokenCacheItem> results = this.getAll();
         final List<TokenCacheItem> tokenItems = new ArrayList<>();
-
-        while (results.hasNext()) {
-            final TokenCacheItem tokenCacheItem = results.next();
+        for (final TokenCacheItem tokenCacheItem : getItems(getSyncedIndex().getKeysForUser(userId)).values()) {
             if (tokenCacheItem.getUserInfo() != null
                     && tokenCacheItem.getUserInfo().getUserId().equalsIgnoreCase(userId)) {
                 tokenItems.add(tokenCacheItem);
@@ -345,20 +941,69 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
      */
     @Override
     public List<TokenCacheItem> getTokensAboutToExpire() {
-        Iterator<TokenCacheItem> results = this.getAll();
+        final Set<String> keys = getSyncedIndex().getKeysExpiringBefore(getTokenValidityTime().getTimeInMillis());
         final List<TokenCacheItem> tokenItems = new ArrayList<>();
-
-        while (results.hasNext()) {
-            final TokenCacheItem tokenCacheItem = results.next();
+        for (final TokenCacheItem tokenCacheItem : getItems(keys).values()) {
             if (isAboutToExpire(tokenCacheItem.getExpiresOn())) {
                 tokenItems.add(tokenCacheItem);
             }
         }
 
-
         return tokenItems;
     }
 
+    /**
+     * Get the live secondary indexes. The persisted entries are only read when the index is not
+     * built yet or the file was changed outside of the store, and then only entries written by
+     * someone else are decrypted.
+     *
+     * @return {@link TokenCacheIndex} matching the current content of the file.
+     */
+    TokenCacheIndex getSyncedIndex() {
+        if (!mIndex.isSynced()) {
+            final int changeCount = mIndex.getChangeCount();
+            mIndex.sync(getPersistedValues(), mIndexLoader, changeCount);
+        }
+
+        return mIndex;
+    }
+
+    /**
+     * Tell the store that entries were written to its file without going through it, such as
+     * by the common cache, so that the next query reconciles the secondary indexes.
+     */
+    void onItemsWrittenOutsideOfStore() {
+        mIndex.markStale();
+    }
+
+    /**
+     * {@inheritDoc}
+     * Keys removed in the meantime are skipped.
+     */
+    @Override
+    public Map<String, TokenCacheItem> getItems(final Collection<String> keys) {
+        if (keys == null) {
+            throw new IllegalArgumentException("keys");
+        }
+
+        final Map<String, TokenCacheItem> items = new LinkedHashMap<>();
+        for (final String key : keys) {
+            if (key == null) {
+                throw new IllegalArgumentException("The key is null.");
+            }
+
+            final String json = getPersistedValue(key);
+            if (json != null) {
+                final TokenCacheItem item = readItem(key, json);
+                if (item != null) {
+                    items.put(key, item);
+                }
+            }
+        }
+
+        return items;
+    }
+
     private void validateSecretKeySetting() {
         final byte[] secretKeyData = AuthenticationSettings.INSTANCE.getSecretKeyData();
         if (secretKeyData == null && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
@@ -387,7 +1032,7 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
             throw new IllegalArgumentException("key");
         }
 
-        return mPrefs.contains(key);
+        return mPrefs.contains(key) || (mShards != null && getFile(key).contains(key));
     }
 
 }
@@ -28,7 +28,9 @@ import android.content.Context;
 
 import androidx.annotation.NonNull;
 
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
 
 /**
  * An implementation of {@link ITokenCacheStore} that delegates to a constructor-provided instance.
@@ -41,12 +43,12 @@ class DelegatingCache implements ITokenCacheStore {
     /**
      * Constructs a new instance of {@link DelegatingCache}.
      *
-     * @param context  The application {@link Context} of the initializing app.
+     * @param context  The {@link Context} of the initializing app, only its application context is kept.
      * @param delegate The cache to which method invocations on this cache will delegate.
      */
     DelegatingCache(@NonNull final Context context,
                     @NonNull final ITokenCacheStore delegate) {
-        mContext = context;
+        mContext = context.getApplicationContext();
         mDelegate = delegate;
     }
 
@@ -84,6 +86,21 @@ class DelegatingCache implements ITokenCacheStore {
         mDelegate.removeItem(key);
     }
 
+    @Override
+    public void setItems(final Map<String, TokenCacheItem> items) {
+        mDelegate.setItems(items);
+    }
+
+    @Override
+    public Map<String, TokenCacheItem> getItems(final Collection<String> keys) {
+        return mDelegate.getItems(keys);
+    }
+
+    @Override
+    public void removeItems(final Collection<String> keys) {
+        mDelegate.removeItems(keys);
+    }
+
     @Override
     public void removeAll() {
         // Clear our original cache
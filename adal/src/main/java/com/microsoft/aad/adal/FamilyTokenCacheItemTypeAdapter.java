@@ -0,0 +1,125 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.aad.adal;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.microsoft.identity.common.adal.internal.AuthenticationConstants.OAuth2;
+
+import java.io.IOException;
+
+/**
+ * Streaming counterpart of {@link TokenCacheItemSerializationAdapater} used by
+ * {@link SSOStateSerializer}. It reads and writes the same lightweight family token cache item
+ * without building an intermediate JSON tree.
+ */
+final class FamilyTokenCacheItemTypeAdapter extends TypeAdapter<TokenCacheItem> {
+
+    private static final String TAG = FamilyTokenCacheItemTypeAdapter.class.getSimpleName();
+
+    @Override
+    public void write(final JsonWriter out, final TokenCacheItem tokenCacheItem) throws IOException {
+        if (tokenCacheItem == null) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginObject();
+        writeString(out, OAuth2.AUTHORITY, tokenCacheItem.getAuthority());
+        writeString(out, OAuth2.REFRESH_TOKEN, tokenCacheItem.getRefreshToken());
+        writeString(out, OAuth2.ID_TOKEN, tokenCacheItem.getRawIdToken());
+        writeString(out, OAuth2.ADAL_CLIENT_FAMILY_ID, tokenCacheItem.getFamilyClientId());
+        out.endObject();
+    }
+
+    @Override
+    public TokenCacheItem read(final JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        String authority = null;
+        String refreshToken = null;
+        String rawIdToken = null;
+        String familyClientId = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            final String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+            } else if (OAuth2.AUTHORITY.equals(name)) {
+                authority = in.nextString();
+            } else if (OAuth2.REFRESH_TOKEN.equals(name)) {
+                refreshToken = in.nextString();
+            } else if (OAuth2.ID_TOKEN.equals(name)) {
+                rawIdToken = in.nextString();
+            } else if (OAuth2.ADAL_CLIENT_FAMILY_ID.equals(name)) {
+                familyClientId = in.nextString();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+
+        throwIfParameterMissing(authority, OAuth2.AUTHORITY);
+        throwIfParameterMissing(rawIdToken, OAuth2.ID_TOKEN);
+        throwIfParameterMissing(familyClientId, OAuth2.ADAL_CLIENT_FAMILY_ID);
+        throwIfParameterMissing(refreshToken, OAuth2.REFRESH_TOKEN);
+
+        final IdToken idToken;
+        try {
+            idToken = new IdToken(rawIdToken);
+        } catch (AuthenticationException e) {
+            throw new JsonParseException(TAG + ": Could not deserialize into a tokenCacheItem object", e);
+        }
+
+        final TokenCacheItem tokenCacheItem = new TokenCacheItem();
+        tokenCacheItem.setUserInfo(new UserInfo(idToken));
+        tokenCacheItem.setTenantId(idToken.getTenantId());
+        tokenCacheItem.setAuthority(authority);
+        tokenCacheItem.setIsMultiResourceRefreshToken(true);
+        tokenCacheItem.setRawIdToken(rawIdToken);
+        tokenCacheItem.setFamilyClientId(familyClientId);
+        tokenCacheItem.setRefreshToken(refreshToken);
+        return tokenCacheItem;
+    }
+
+    private static void writeString(final JsonWriter out, final String name, final String value) throws IOException {
+        if (value == null) {
+            throw new IllegalArgumentException(TAG + "Attribute " + name + " is missing for serialization.");
+        }
+
+        out.name(name).value(value);
+    }
+
+    private static void throwIfParameterMissing(final String value, final String name) {
+        if (value == null) {
+            throw new JsonParseException(TAG + "Attribute " + name + " is missing for deserialization.");
+        }
+    }
+}
@@ -28,17 +28,31 @@ import android.content.Context;
 import com.microsoft.identity.common.adal.internal.util.StringExtensions;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Persisted cache that keeps cache in-memory until write operation. Filename
  * should not be used on another instance of FileTokenCacheStore since read
  * operations are not synced to file.
+ * <p>
+ * Each write operation appends a record to the cache file instead of rewriting the whole
+ * cache, and the file is periodically compacted.
+ * See {@link TokenCacheJournal} for the file format. Cache files written by previous versions
+ * are migrated when they are loaded. Previous versions can't read the migrated file, their
+ * constructor throws an {@link IllegalStateException}, so the cache file has to be deleted
+ * before a downgrade.
+ * <p>
+ * With a write-behind delay, write operations only update the in-memory cache and the file is
+ * written on a background thread once the delay has passed, so that a burst of writes is
+ * persisted at once. Use {@link #flush()} to persist pending writes immediately.
+ * {@link #removeAll()} always persists synchronously.
  */
 public class FileTokenCacheStore implements ITokenCacheStore {
 
@@ -49,12 +63,42 @@ public class FileTokenCacheStore implements ITokenCacheStore {
 
     private static final String TAG = FileTokenCacheStore.class.getSimpleName();
 
+    /**
+     * The journal is never compacted before it holds this many records.
+     */
+    private static final int MIN_JOURNAL_RECORDS_BEFORE_COMPACTION = 64;
+
+    private static final ScheduledExecutorService FLUSH_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
     private final File mFile;
 
     private final MemoryTokenCacheStore mInMemoryCache;
 
+    private final transient TokenCacheJournal mJournal;
+
     private final Object mCacheLock = new Object();
 
+    /**
+     * Held while writing to the file, acquired before {@link #mCacheLock}.
+     */
+    private final transient Object mFileLock = new Object();
+
+    private final transient long mWriteBehindDelayMillis;
+
+    /**
+     * Changes not written to the file yet, by key. A null value is a removal.
+     */
+    private final transient Map<String, TokenCacheItem> mPendingWrites = new LinkedHashMap<>();
+
+    private transient boolean mIsFlushScheduled;
+
+    private final transient Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
     /**
      * It tracks data in memory until it writes that to a file with write
      * operation.
@@ -65,6 +109,35 @@ public class FileTokenCacheStore implements ITokenCacheStore {
      *                 write to a file.
      */
     public FileTokenCacheStore(Context context, String fileName) {
+        this(context, fileName, 0);
+    }
+
+    /**
+     * It tracks data in memory and writes it to a file on a background thread, at most
+     * writeBehindDelayMillis after a write operation.
+     *
+     * @param context                {@link Context}
+     * @param fileName               filename should be unique to this instance since read
+     *                               operations don't read from file directly.
+     * @param writeBehindDelayMillis delay in milliseconds before pending writes are written to
+     *                               the file. 0 writes synchronously.
+     */
+    public FileTokenCacheStore(Context context, String fileName, long writeBehindDelayMillis) {
+        this(context, fileName, writeBehindDelayMillis, 0);
+    }
+
+    /**
+     * It tracks at most maxItems items in memory and in the file, see
+     * {@link MemoryTokenCacheStore#MemoryTokenCacheStore(int)}.
+     *
+     * @param context                {@link Context}
+     * @param fileName               filename should be unique to this instance since read
+     *                               operations don't read from file directly.
+     * @param writeBehindDelayMillis delay in milliseconds before pending writes are written to
+     *                               the file. 0 writes synchronously.
+     * @param maxItems               maximum number of items kept. 0 does not bound the cache.
+     */
+    public FileTokenCacheStore(Context context, String fileName, long writeBehindDelayMillis, int maxItems) {
         final String methodName = ":FileTokenCacheStore";
         if (context == null) {
             throw new IllegalArgumentException("context");
@@ -74,6 +147,16 @@ public class FileTokenCacheStore implements ITokenCacheStore {
             throw new IllegalArgumentException("fileName");
         }
 
+        if (writeBehindDelayMillis < 0) {
+            throw new IllegalArgumentException("writeBehindDelayMillis");
+        }
+
+        if (maxItems < 0) {
+            throw new IllegalArgumentException("maxItems");
+        }
+
+        mWriteBehindDelayMillis = writeBehindDelayMillis;
+
         // It is using package directory not the external storage, so
         // external write permissions are not needed
         final File directory = context.getDir(context.getPackageName(), Context.MODE_PRIVATE);
@@ -83,29 +166,33 @@ public class FileTokenCacheStore implements ITokenCacheStore {
         }
 
         // Initialize cache from file if it exists
-        try {
-            mFile = new File(directory, fileName);
+        mFile = new File(directory, fileName);
+        mJournal = new TokenCacheJournal(mFile);
+        mInMemoryCache = maxItems == 0 ? new MemoryTokenCacheStore() : new MemoryTokenCacheStore(maxItems);
+        mInMemoryCache.setEvictionListener(new MemoryTokenCacheStore.EvictionListener() {
+            @Override
+            public void onItemsEvicted(final Collection<String> keys) {
+                synchronized (mCacheLock) {
+                    for (final String key : keys) {
+                        mPendingWrites.put(key, null);
+                    }
+                }
+            }
+        });
 
-            if (mFile.exists()) {
+        try {
+            if (mJournal.exists()) {
                 Logger.v(TAG + methodName, "There is previous cache file to load cache. ");
-                FileInputStream inputStream = new FileInputStream(mFile);
-                ObjectInputStream objectStream = new ObjectInputStream(inputStream);
-                Object cacheObj = objectStream.readObject();
-                inputStream.close();
-                objectStream.close();
-
-                if (cacheObj instanceof MemoryTokenCacheStore) {
-                    mInMemoryCache = (MemoryTokenCacheStore) cacheObj;
-                } else {
-                    Logger.w(TAG + methodName, "Existing cache format is wrong. ", "",
-                            ADALError.DEVICE_FILE_CACHE_FORMAT_IS_WRONG);
-
-                    // Write operation will replace with correct file
-                    mInMemoryCache = new MemoryTokenCacheStore();
+                mInMemoryCache.setItems(mJournal.load());
+
+                if (mJournal.needsCompaction() || !mPendingWrites.isEmpty()) {
+                    // Rewrite legacy or damaged files before anything is appended to them,
+                    // and drop the items evicted while loading.
+                    mPendingWrites.clear();
+                    mJournal.compact(mInMemoryCache.getItemsByKey());
                 }
             } else {
                 Logger.v(TAG + methodName, "There is not any previous cache file to load cache. ");
-                mInMemoryCache = new MemoryTokenCacheStore();
             }
         } catch (IOException | ClassNotFoundException ex) {
             Logger.e(TAG + methodName, "Exception during cache load. ",
@@ -124,6 +211,11 @@ public class FileTokenCacheStore implements ITokenCacheStore {
         return mInMemoryCache.getItem(key);
     }
 
+    @Override
+    public Map<String, TokenCacheItem> getItems(final Collection<String> keys) {
+        return mInMemoryCache.getItems(keys);
+    }
+
     @Override
     public boolean contains(String key) {
         return mInMemoryCache.contains(key);
@@ -131,45 +223,178 @@ public class FileTokenCacheStore implements ITokenCacheStore {
 
     @Override
     public void setItem(String key, TokenCacheItem item) {
-        mInMemoryCache.setItem(key, item);
-        writeToFile();
+        if (item == null) {
+            throw new IllegalArgumentException("item");
+        }
+
+        if (key == null) {
+            throw new IllegalArgumentException("key");
+        }
+
+        synchronized (mCacheLock) {
+            // Recorded first, so that an eviction caused by this write overrides it.
+            mPendingWrites.put(key, item);
+            mInMemoryCache.setItem(key, item);
+        }
+        onChanged();
     }
 
+    @Override
+    public void setItems(final Map<String, TokenCacheItem> items) {
+        if (items == null) {
+            throw new IllegalArgumentException("items");
+        }
+
+        for (final Map.Entry<String, TokenCacheItem> entry : items.entrySet()) {
+            if (entry.getKey() == null) {
+                throw new IllegalArgumentException("key");
+            }
+
+            if (entry.getValue() == null) {
+                throw new IllegalArgumentException("item");
+            }
+        }
+
+        synchronized (mCacheLock) {
+            mPendingWrites.putAll(items);
+            mInMemoryCache.setItems(items);
+        }
+        onChanged();
+    }
 
     @Override
     public void removeItem(String key) {
-        mInMemoryCache.removeItem(key);
-        writeToFile();
+        synchronized (mCacheLock) {
+            mInMemoryCache.removeItem(key);
+            mPendingWrites.put(key, null);
+        }
+        onChanged();
+    }
+
+    @Override
+    public void removeItems(final Collection<String> keys) {
+        synchronized (mCacheLock) {
+            mInMemoryCache.removeItems(keys);
+            for (final String key : keys) {
+                mPendingWrites.put(key, null);
+            }
+        }
+        onChanged();
     }
 
     @Override
     public void removeAll() {
-        mInMemoryCache.removeAll();
-        writeToFile();
+        synchronized (mFileLock) {
+            synchronized (mCacheLock) {
+                mInMemoryCache.removeAll();
+                mPendingWrites.clear();
+            }
+
+            try {
+                mJournal.compact(mInMemoryCache.getItemsByKey());
+            } catch (final IOException ex) {
+                logWriteFailure(ex);
+            }
+        }
     }
 
-    private void writeToFile() {
-        synchronized (mCacheLock) {
-            if (mFile != null && mInMemoryCache != null) {
-                try {
-
-                    // FileOutputStream will create the file.
-                    FileOutputStream outputStream = new FileOutputStream(mFile);
-                    ObjectOutputStream objectStream = new ObjectOutputStream(outputStream);
-                    objectStream.writeObject(mInMemoryCache);
-                    objectStream.flush();
-                    objectStream.close();
-                    outputStream.close();
-
-                } catch (IOException ex) {
-                    Logger.e(TAG, "Exception during cache flush",
-                            ExceptionExtensions.getExceptionMessage(ex),
-                            ADALError.DEVICE_FILE_CACHE_IS_NOT_WRITING_TO_FILE);
+    /**
+     * Remove the items that can no longer be used, see
+     * {@link MemoryTokenCacheStore#removeExpiredItems()}.
+     *
+     * @return Number of items removed.
+     */
+    public int removeExpiredItems() {
+        final int removedCount = mInMemoryCache.removeExpiredItems();
+        if (removedCount > 0) {
+            onChanged();
+        }
+
+        return removedCount;
+    }
+
+    /**
+     * @return Number of items evicted because the cache was full.
+     */
+    public long getEvictionCount() {
+        return mInMemoryCache.getEvictionCount();
+    }
+
+    /**
+     * @return Number of expired items removed.
+     */
+    public long getExpiredItemRemovalCount() {
+        return mInMemoryCache.getExpiredItemRemovalCount();
+    }
+
+    /**
+     * Write pending changes to the file on the calling thread.
+     */
+    public void flush() {
+        synchronized (mFileLock) {
+            final Map<String, TokenCacheItem> pendingWrites;
+            synchronized (mCacheLock) {
+                mIsFlushScheduled = false;
+                if (mPendingWrites.isEmpty()) {
+                    return;
                 }
+
+                pendingWrites = new LinkedHashMap<>(mPendingWrites);
+                mPendingWrites.clear();
+            }
+
+            try {
+                for (final Map.Entry<String, TokenCacheItem> entry : pendingWrites.entrySet()) {
+                    if (entry.getValue() == null) {
+                        mJournal.appendRemove(entry.getKey());
+                    } else {
+                        mJournal.appendPut(entry.getKey(), entry.getValue());
+                    }
+                }
+                mJournal.flush();
+            } catch (final IOException ex) {
+                logWriteFailure(ex);
+            }
+            compactIfNeeded();
+        }
+    }
+
+    private void onChanged() {
+        if (mWriteBehindDelayMillis == 0) {
+            flush();
+            return;
+        }
+
+        synchronized (mCacheLock) {
+            if (!mIsFlushScheduled) {
+                mIsFlushScheduled = true;
+                FLUSH_EXECUTOR.schedule(mFlushTask, mWriteBehindDelayMillis, TimeUnit.MILLISECONDS);
             }
         }
     }
 
+    /**
+     * Rewrite the journal once it holds more than twice as many records as live entries, so
+     * that the amortized cost of a write stays proportional to the entry.
+     */
+    private void compactIfNeeded() {
+        final int compactionThreshold = Math.max(MIN_JOURNAL_RECORDS_BEFORE_COMPACTION,
+                2 * mInMemoryCache.size());
+        if (mJournal.needsCompaction() || mJournal.getRecordCount() > compactionThreshold) {
+            try {
+                mJournal.compact(mInMemoryCache.getItemsByKey());
+            } catch (final IOException ex) {
+                logWriteFailure(ex);
+            }
+        }
+    }
+
+    private void logWriteFailure(final IOException ex) {
+        Logger.e(TAG, "Exception during cache flush",
+                ExceptionExtensions.getExceptionMessage(ex),
+                ADALError.DEVICE_FILE_CACHE_IS_NOT_WRITING_TO_FILE);
+    }
+
     @Override
     public Iterator<TokenCacheItem> getAll() {
         return mInMemoryCache.getAll();
@@ -24,7 +24,10 @@
 package com.microsoft.aad.adal;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Minimal interface needed by ADAL for cache.
@@ -39,6 +42,29 @@ public interface ITokenCacheStore extends Serializable {
      */
     TokenCacheItem getItem(String key);
 
+    /**
+     * Gets several cache items at once. The default implementation gets the items one by one.
+     *
+     * @param keys {@link Collection} of {@link CacheKey}s to look up.
+     * @return {@link Map} of {@link CacheKey} to cache item, in the order of the given keys.
+     * Keys without a cache item are left out.
+     */
+    default Map<String, TokenCacheItem> getItems(final Collection<String> keys) {
+        if (keys == null) {
+            throw new IllegalArgumentException("keys");
+        }
+
+        final Map<String, TokenCacheItem> items = new LinkedHashMap<>();
+        for (final String key : keys) {
+            final TokenCacheItem item = getItem(key);
+            if (item != null) {
+                items.put(key, item);
+            }
+        }
+
+        return items;
+    }
+
     /**
      * Get all cached token items.
      *
@@ -73,4 +99,36 @@ public interface ITokenCacheStore extends Serializable {
      * Removes all items from cache.
      */
     void removeAll();
+
+    /**
+     * Sets several items at once. Implementations backed by storage should persist the whole
+     * batch in a single write. The default implementation sets the items one by one.
+     *
+     * @param items {@link Map} of {@link CacheKey} to cache item.
+     */
+    default void setItems(final Map<String, TokenCacheItem> items) {
+        if (items == null) {
+            throw new IllegalArgumentException("items");
+        }
+
+        for (final Map.Entry<String, TokenCacheItem> entry : items.entrySet()) {
+            setItem(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Removes several items at once. Implementations backed by storage should persist the whole
+     * batch in a single write. The default implementation removes the items one by one.
+     *
+     * @param keys {@link Collection} of {@link CacheKey}s to remove.
+     */
+    default void removeItems(final Collection<String> keys) {
+        if (keys == null) {
+            throw new IllegalArgumentException("keys");
+        }
+
+        for (final String key : keys) {
+            removeItem(key);
+        }
+    }
 }
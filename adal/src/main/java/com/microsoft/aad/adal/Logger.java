@@ -43,6 +43,10 @@ public class Logger {
 
     private String mCorrelationId = null;
 
+    private volatile LogLevel mLogLevel = LogLevel.Verbose;
+
+    private volatile boolean mEnablePII = false;
+
     /**
      * @return The single instance of {@link Logger}.
      */
@@ -81,6 +85,24 @@ public class Logger {
             default:
                 throw new IllegalArgumentException("Unknown logLevel");
         }
+
+        mLogLevel = logLevel;
+    }
+
+    /**
+     * @param logLevel The {@link LogLevel} of a message.
+     * @return True if messages of the given level are logged. Lets callers skip building
+     * messages that would be dropped.
+     */
+    boolean isLoggable(final LogLevel logLevel) {
+        return logLevel.compareTo(mLogLevel) <= 0;
+    }
+
+    /**
+     * @return True if user information passed as additionalMessage is logged.
+     */
+    boolean isPIIEnabled() {
+        return mEnablePII;
     }
 
     /**
@@ -157,6 +179,7 @@ public class Logger {
      */
     public void setEnablePII(final boolean enablePII) {
         com.microsoft.identity.common.internal.logging.Logger.setAllowPii(enablePII);
+        mEnablePII = enablePII;
     }
 
     /**
@@ -23,15 +23,35 @@
 
 package com.microsoft.aad.adal;
 
+import com.microsoft.identity.common.adal.internal.util.StringExtensions;
+
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * tokenCacheItem is not persisted. Memory cache does not keep static items.
+ * <p>
+ * Reads do not take a lock, and {@link #getAll()} returns a weakly consistent iterator that
+ * can be used while the cache is modified.
+ * <p>
+ * A store created with a maximum number of items is bounded: once a write exceeds the maximum,
+ * the least recently used items are evicted. Bounded stores also periodically remove items
+ * that can no longer be used, see {@link #removeExpiredItems()}. The bound is not serialized.
  */
 public class MemoryTokenCacheStore implements ITokenCacheStore {
 
@@ -42,9 +62,48 @@ public class MemoryTokenCacheStore implements ITokenCacheStore {
 
     private static final String TAG = "MemoryTokenCacheStore";
 
-    private final Map<String, TokenCacheItem> mCache = new HashMap<>();
+    /**
+     * Minimum interval between two removals of expired items triggered by writes.
+     */
+    private static final long EXPIRED_ITEMS_REMOVAL_INTERVAL_MILLIS = 60 * 1000;
+
+    /**
+     * The serialized form of previous versions, a single {@link HashMap} field.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("mCache", Map.class)
+    };
+
+    private transient ConcurrentHashMap<String, TokenCacheItem> mCache = new ConcurrentHashMap<>();
+
+    /**
+     * Maximum number of items, 0 if the store is not bounded.
+     */
+    private transient int mMaxItems;
+
+    /**
+     * Value of {@link #mAccessClock} at the last access, by key. Only tracked for bounded stores.
+     */
+    private transient ConcurrentHashMap<String, Long> mLastAccess = new ConcurrentHashMap<>();
+
+    private transient AtomicLong mAccessClock = new AtomicLong();
 
-    private transient Object mCacheLock = new Object();
+    private transient AtomicLong mEvictionCount = new AtomicLong();
+
+    private transient AtomicLong mExpiredItemRemovalCount = new AtomicLong();
+
+    private transient long mLastExpiredItemsRemovalMillis;
+
+    private transient Object mEvictionLock = new Object();
+
+    private transient volatile EvictionListener mEvictionListener;
+
+    /**
+     * Notified of the keys removed by the store itself, after the removal.
+     */
+    interface EvictionListener {
+        void onItemsEvicted(Collection<String> keys);
+    }
 
     /**
      * Creates MemoryTokenCacheStore.
@@ -52,16 +111,54 @@ public class MemoryTokenCacheStore implements ITokenCacheStore {
     public MemoryTokenCacheStore() {
     }
 
+    /**
+     * Creates a bounded MemoryTokenCacheStore.
+     *
+     * @param maxItems Maximum number of items kept. Least recently used items are evicted first.
+     */
+    public MemoryTokenCacheStore(final int maxItems) {
+        if (maxItems <= 0) {
+            throw new IllegalArgumentException("maxItems");
+        }
+
+        mMaxItems = maxItems;
+    }
+
     @Override
     public TokenCacheItem getItem(String key) {
         if (key == null) {
             throw new IllegalArgumentException("The input key is null.");
         }
 
-        Logger.i(TAG, "Get Item from cache. ", "Key:" + key);
-        synchronized (mCacheLock) {
-            return mCache.get(key);
+        logKey("Get Item from cache. ", key);
+        final TokenCacheItem item = mCache.get(key);
+        if (item != null) {
+            touch(key);
+        }
+
+        return item;
+    }
+
+    @Override
+    public Map<String, TokenCacheItem> getItems(final Collection<String> keys) {
+        if (keys == null) {
+            throw new IllegalArgumentException("keys");
+        }
+
+        final Map<String, TokenCacheItem> items = new LinkedHashMap<>();
+        for (final String key : keys) {
+            if (key == null) {
+                throw new IllegalArgumentException("key");
+            }
+
+            final TokenCacheItem item = mCache.get(key);
+            if (item != null) {
+                touch(key);
+                items.put(key, item);
+            }
         }
+
+        return items;
     }
 
     @Override
@@ -74,10 +171,11 @@ public class MemoryTokenCacheStore implements ITokenCacheStore {
             throw new IllegalArgumentException("key");
         }
 
-        Logger.i(TAG, "Set Item to cache. ", "Key: " + key);
-        synchronized (mCacheLock) {
-            mCache.put(key, item);
-        }
+        logKey("Set Item to cache. ", key);
+        // Stamped first, so a concurrent eviction never sees the new entry without its access.
+        touch(key);
+        mCache.put(key, item);
+        evictIfNeeded();
     }
 
     @Override
@@ -86,29 +184,140 @@ public class MemoryTokenCacheStore implements ITokenCacheStore {
             throw new IllegalArgumentException("key");
         }
 
-        Logger.i(TAG, "Remove Item from cache. ", "Key:" + key.hashCode());
-        synchronized (mCacheLock) {
+        if (Logger.getInstance().isLoggable(Logger.LogLevel.Info)) {
+            Logger.i(TAG, "Remove Item from cache. ", "Key:" + key.hashCode());
+        }
+        mCache.remove(key);
+        mLastAccess.remove(key);
+    }
+
+    @Override
+    public void setItems(final Map<String, TokenCacheItem> items) {
+        if (items == null) {
+            throw new IllegalArgumentException("items");
+        }
+
+        for (final Map.Entry<String, TokenCacheItem> entry : items.entrySet()) {
+            if (entry.getKey() == null) {
+                throw new IllegalArgumentException("key");
+            }
+
+            if (entry.getValue() == null) {
+                throw new IllegalArgumentException("item");
+            }
+        }
+
+        if (Logger.getInstance().isLoggable(Logger.LogLevel.Verbose)) {
+            Logger.v(TAG, "Set " + items.size() + " items to cache.");
+        }
+        for (final String key : items.keySet()) {
+            touch(key);
+        }
+        mCache.putAll(items);
+        evictIfNeeded();
+    }
+
+    @Override
+    public void removeItems(final Collection<String> keys) {
+        if (keys == null) {
+            throw new IllegalArgumentException("keys");
+        }
+
+        for (final String key : keys) {
+            if (key == null) {
+                throw new IllegalArgumentException("key");
+            }
+        }
+
+        if (Logger.getInstance().isLoggable(Logger.LogLevel.Verbose)) {
+            Logger.v(TAG, "Remove " + keys.size() + " items from cache.");
+        }
+        for (final String key : keys) {
             mCache.remove(key);
+            mLastAccess.remove(key);
         }
     }
 
     @Override
     public void removeAll() {
         Logger.v(TAG, "Remove all items from cache.");
-        synchronized (mCacheLock) {
-            mCache.clear();
+        mCache.clear();
+        mLastAccess.clear();
+    }
+
+    /**
+     * Remove the items that can no longer be used: items without refresh token whose access
+     * token is expired, including its extended lifetime.
+     *
+     * @return Number of items removed.
+     */
+    public int removeExpiredItems() {
+        final List<String> removedKeys = new ArrayList<>();
+        synchronized (mEvictionLock) {
+            removeExpiredItems(removedKeys);
         }
+
+        notifyEvicted(removedKeys);
+        return removedKeys.size();
+    }
+
+    /**
+     * @return Number of items evicted because the store was full.
+     */
+    public long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    /**
+     * @return Number of expired items removed.
+     */
+    public long getExpiredItemRemovalCount() {
+        return mExpiredItemRemovalCount.get();
+    }
+
+    void setEvictionListener(final EvictionListener evictionListener) {
+        mEvictionListener = evictionListener;
+    }
+
+    /**
+     * @return A copy of the cached items by key.
+     */
+    Map<String, TokenCacheItem> getItemsByKey() {
+        return new HashMap<>(mCache);
+    }
+
+    /**
+     * @return Number of cached items.
+     */
+    int size() {
+        return mCache.size();
     }
 
-    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
-        out.defaultWriteObject();
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        final ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("mCache", new HashMap<>(mCache));
+        out.writeFields();
     }
 
+    @SuppressWarnings("unchecked")
     private void readObject(ObjectInputStream inputStream) throws IOException,
             ClassNotFoundException {
-        inputStream.defaultReadObject();
+        final ObjectInputStream.GetField fields = inputStream.readFields();
+        final Map<String, TokenCacheItem> cache = (Map<String, TokenCacheItem>) fields.get("mCache", null);
 
-        mCacheLock = new Object();
+        mCache = new ConcurrentHashMap<>();
+        mLastAccess = new ConcurrentHashMap<>();
+        mAccessClock = new AtomicLong();
+        mEvictionCount = new AtomicLong();
+        mExpiredItemRemovalCount = new AtomicLong();
+        mEvictionLock = new Object();
+        if (cache != null) {
+            for (final Map.Entry<String, TokenCacheItem> entry : cache.entrySet()) {
+                if (entry.getKey() != null && entry.getValue() != null) {
+                    mCache.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
     }
 
     @Override
@@ -117,17 +326,104 @@ public class MemoryTokenCacheStore implements ITokenCacheStore {
             throw new IllegalArgumentException("key");
         }
 
-        Logger.i(TAG, "contains Item from cache.", "Key: " + key);
-        synchronized (mCacheLock) {
-            return mCache.get(key) != null;
+        logKey("contains Item from cache.", key);
+        if (mCache.containsKey(key)) {
+            touch(key);
+            return true;
         }
+
+        return false;
     }
 
     @Override
     public Iterator<TokenCacheItem> getAll() {
-        Logger.v(TAG, "Retrieving all items from cache. ");
-        synchronized (mCacheLock) {
-            return mCache.values().iterator();
+        if (Logger.getInstance().isLoggable(Logger.LogLevel.Verbose)) {
+            Logger.v(TAG, "Retrieving all items from cache. ");
+        }
+        return mCache.values().iterator();
+    }
+
+    private void touch(final String key) {
+        if (mMaxItems > 0) {
+            mLastAccess.put(key, mAccessClock.incrementAndGet());
+        }
+    }
+
+    private void evictIfNeeded() {
+        if (mMaxItems == 0) {
+            return;
+        }
+
+        final List<String> evictedKeys = new ArrayList<>();
+        synchronized (mEvictionLock) {
+            final long now = System.currentTimeMillis();
+            if (now - mLastExpiredItemsRemovalMillis >= EXPIRED_ITEMS_REMOVAL_INTERVAL_MILLIS) {
+                mLastExpiredItemsRemovalMillis = now;
+                removeExpiredItems(evictedKeys);
+            }
+
+            final int overflow = mCache.size() - mMaxItems;
+            if (overflow > 0) {
+                final List<Map.Entry<String, Long>> accesses = new ArrayList<>();
+                for (final String key : mCache.keySet()) {
+                    final Long lastAccess = mLastAccess.get(key);
+                    accesses.add(new AbstractMap.SimpleEntry<>(key, lastAccess == null ? 0L : lastAccess));
+                }
+
+                Collections.sort(accesses, new Comparator<Map.Entry<String, Long>>() {
+                    @Override
+                    public int compare(final Map.Entry<String, Long> first, final Map.Entry<String, Long> second) {
+                        return first.getValue().compareTo(second.getValue());
+                    }
+                });
+
+                for (int i = 0; i < overflow && i < accesses.size(); i++) {
+                    final String key = accesses.get(i).getKey();
+                    mCache.remove(key);
+                    mLastAccess.remove(key);
+                    evictedKeys.add(key);
+                    mEvictionCount.incrementAndGet();
+                }
+            }
+        }
+
+        notifyEvicted(evictedKeys);
+    }
+
+    private void removeExpiredItems(final List<String> removedKeys) {
+        final long now = System.currentTimeMillis();
+        for (final Map.Entry<String, TokenCacheItem> entry : mCache.entrySet()) {
+            if (isExpired(entry.getValue(), now) && mCache.remove(entry.getKey(), entry.getValue())) {
+                mLastAccess.remove(entry.getKey());
+                removedKeys.add(entry.getKey());
+                mExpiredItemRemovalCount.incrementAndGet();
+            }
+        }
+    }
+
+    private void notifyEvicted(final List<String> keys) {
+        final EvictionListener evictionListener = mEvictionListener;
+        if (!keys.isEmpty()) {
+            Logger.v(TAG, "Removed " + keys.size() + " items from cache. ");
+            if (evictionListener != null) {
+                evictionListener.onItemsEvicted(keys);
+            }
+        }
+    }
+
+    private static boolean isExpired(final TokenCacheItem item, final long now) {
+        if (!StringExtensions.isNullOrBlank(item.getRefreshToken()) || item.getExpiresOn() == null
+                || item.getExpiresOn().getTime() > now) {
+            return false;
+        }
+
+        final Date extendedExpiresOn = item.getExtendedExpiresOn();
+        return extendedExpiresOn == null || extendedExpiresOn.getTime() <= now;
+    }
+
+    private static void logKey(final String message, final String key) {
+        if (Logger.getInstance().isLoggable(Logger.LogLevel.Info)) {
+            Logger.i(TAG, message, Logger.getInstance().isPIIEnabled() ? "Key: " + key : null);
         }
     }
 }
@@ -0,0 +1,328 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.aad.adal;
+
+import android.content.Context;
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+
+import com.microsoft.identity.common.adal.internal.util.StringExtensions;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshes in the background the access tokens returned by silent requests before they expire,
+ * see {@link AuthenticationSettings#setRefreshAheadWindow(int)}, and the access tokens returned
+ * within their expiration buffer, see {@link AuthenticationSettings#setUseStaleWhileRevalidate(boolean)}.
+ * A refresh runs through {@link AcquireTokenSilentHandler} like a silent request forcing the
+ * refresh, so the regular, multi resource and family refresh tokens of the cache are used in the
+ * same order. It runs on a dedicated thread at background priority, after the requests for the
+ * same token queued on the {@link TokenRequestExecutor}, and never holds a thread of its pool. A
+ * store of the app which may not be thread safe is only refreshed on the pool, see
+ * {@link TokenRequestExecutor#isConcurrentAccessAllowed(ITokenCacheStore)}.
+ */
+final class RefreshAheadScheduler {
+
+    private static final String TAG = RefreshAheadScheduler.class.getSimpleName();
+
+    /**
+     * Maximum number of tokens tracked, requests for other tokens don't schedule a refresh.
+     */
+    static final int MAX_TRACKED_TOKENS = 32;
+
+    /**
+     * Fraction of the window the refresh is brought forward by at most.
+     */
+    private static final int JITTER_DIVISOR = 4;
+
+    private static final long MILLIS_PER_SECOND = 1000;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final RefreshAheadScheduler INSTANCE = new RefreshAheadScheduler();
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor();
+
+    private static final ThreadPoolExecutor BACKGROUND_EXECUTOR = createBackgroundExecutor();
+
+    private final Random mRandom = new Random();
+
+    /**
+     * Tokens with a refresh scheduled, by {@link TokenRequestExecutor#getKey(AuthenticationRequest)}.
+     */
+    private final Map<String, TrackedToken> mTrackedTokens = new HashMap<>();
+
+    /**
+     * Keys of the tokens with a refresh started by {@link #revalidate} in flight.
+     */
+    private final Set<String> mRevalidatedKeys = new HashSet<>();
+
+    static RefreshAheadScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Schedule the refresh of the token returned to a silent request, unless it's already
+     * scheduled, or mark it as used since its last refresh.
+     */
+    void onTokenReturned(@NonNull final Context appContext, @NonNull final AuthenticationContext authContext,
+                         @NonNull final AuthenticationRequest request, @NonNull final AuthenticationResult result) {
+        final int window = AuthenticationSettings.INSTANCE.getRefreshAheadWindow();
+        if (window == 0 || authContext.getCache() == null || result.getExpiresOn() == null
+                || result.isExtendedLifeTimeToken()) {
+            return;
+        }
+
+        final String key = TokenRequestExecutor.getKey(request);
+        final TrackedToken newTrackedToken;
+        synchronized (mTrackedTokens) {
+            final TrackedToken trackedToken = mTrackedTokens.get(key);
+            if (trackedToken != null) {
+                trackedToken.mIsUsedSinceRefresh = true;
+                return;
+            }
+
+            if (mTrackedTokens.size() >= MAX_TRACKED_TOKENS) {
+                return;
+            }
+
+            newTrackedToken = new TrackedToken(appContext, authContext.getCache(),
+                    authContext.getValidateAuthority(), request);
+            mTrackedTokens.put(key, newTrackedToken);
+        }
+
+        schedule(key, newTrackedToken.mTokenCacheStore, result.getExpiresOn().getTime(), window);
+    }
+
+    /**
+     * @return Delay in milliseconds from now to the refresh of a token expiring at expiresOnMillis.
+     */
+    long getRefreshDelayMillis(final long expiresOnMillis, final int window) {
+        final long windowMillis = window * MILLIS_PER_SECOND;
+        final long jitterMillis = (long) (mRandom.nextDouble() * windowMillis / JITTER_DIVISOR);
+        final long refreshTimeMillis = expiresOnMillis
+                - AuthenticationSettings.INSTANCE.getExpirationBuffer() * MILLIS_PER_SECOND
+                - windowMillis - jitterMillis;
+        return Math.max(0, refreshTimeMillis - System.currentTimeMillis());
+    }
+
+    private void schedule(@NonNull final String key, @NonNull final ITokenCacheStore tokenCacheStore,
+                          final long expiresOnMillis, final int window) {
+        final long delayMillis = getRefreshDelayMillis(expiresOnMillis, window);
+        Logger.v(TAG, "Refresh of access token scheduled in " + delayMillis + " ms.");
+        TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                executeInBackground(key, tokenCacheStore, new Runnable() {
+                    @Override
+                    public void run() {
+                        refresh(key);
+                    }
+                });
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Refresh the token of the request on the background thread now, unless its refresh is
+     * already in flight. The caller never waits for the refresh.
+     */
+    void revalidate(@NonNull final Context appContext, @NonNull final ITokenCacheStore tokenCacheStore,
+                    final boolean validateAuthority, @NonNull final AuthenticationRequest request) {
+        final String key = TokenRequestExecutor.getKey(request);
+        synchronized (mRevalidatedKeys) {
+            if (!mRevalidatedKeys.add(key)) {
+                return;
+            }
+        }
+
+        final TrackedToken token = new TrackedToken(appContext, tokenCacheStore, validateAuthority, request);
+        executeInBackground(key, tokenCacheStore, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    performRefresh(token);
+                } finally {
+                    synchronized (mRevalidatedKeys) {
+                        mRevalidatedKeys.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Run the task on the background thread after the requests for the same token, or on the
+     * {@link TokenRequestExecutor} at background priority if the store can't be accessed outside of it.
+     */
+    private static void executeInBackground(@NonNull final String key, @NonNull final ITokenCacheStore tokenCacheStore,
+                                            @NonNull final Runnable task) {
+        if (TokenRequestExecutor.isConcurrentAccessAllowed(tokenCacheStore)) {
+            TokenRequestExecutor.getInstance().execute(key, task, BACKGROUND_EXECUTOR);
+            return;
+        }
+
+        TokenRequestExecutor.getInstance().execute(key, new Runnable() {
+            @Override
+            public void run() {
+                final int priority = Process.getThreadPriority(Process.myTid());
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    task.run();
+                } finally {
+                    Process.setThreadPriority(priority);
+                }
+            }
+        });
+    }
+
+    private static ThreadPoolExecutor createBackgroundExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, TAG);
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private void refresh(@NonNull final String key) {
+        final TrackedToken trackedToken;
+        synchronized (mTrackedTokens) {
+            trackedToken = mTrackedTokens.get(key);
+            if (trackedToken == null) {
+                return;
+            }
+
+            trackedToken.mIsUsedSinceRefresh = false;
+        }
+
+        final AuthenticationResult result = performRefresh(trackedToken);
+        final boolean isRefreshed = result != null && result.getExpiresOn() != null;
+        final int window = AuthenticationSettings.INSTANCE.getRefreshAheadWindow();
+        synchronized (mTrackedTokens) {
+            // Keep refreshing only the tokens requested since the last refresh
+            if (!isRefreshed || window == 0 || !trackedToken.mIsUsedSinceRefresh) {
+                mTrackedTokens.remove(key);
+                return;
+            }
+
+            trackedToken.mIsUsedSinceRefresh = false;
+        }
+
+        schedule(key, trackedToken.mTokenCacheStore, result.getExpiresOn().getTime(), window);
+    }
+
+    /**
+     * Refresh the token through the refresh tokens of the cache, which is updated with the result.
+     *
+     * @return The result with the new access token, or null if the refresh failed.
+     */
+    private static AuthenticationResult performRefresh(@NonNull final TrackedToken token) {
+        final String methodName = ":performRefresh";
+        final String telemetryRequestId = Telemetry.registerNewRequest();
+        try {
+            final AuthenticationRequest refreshRequest = token.createRefreshRequest(telemetryRequestId);
+            final TokenCacheAccessor tokenCacheAccessor = new TokenCacheAccessor(token.mAppContext,
+                    token.getTokenCacheStore(), refreshRequest.getAuthority(), telemetryRequestId);
+            tokenCacheAccessor.setValidateAuthorityHost(token.mValidateAuthority);
+            final AuthenticationResult result = new AcquireTokenSilentHandler(token.mAppContext, refreshRequest,
+                    tokenCacheAccessor).getAccessToken();
+            if (result != null && !StringExtensions.isNullOrBlank(result.getAccessToken())) {
+                return result;
+            }
+
+            Logger.w(TAG + methodName, "No access token returned by the background refresh.");
+        } catch (final AuthenticationException exception) {
+            Logger.w(TAG + methodName, "Failed to refresh access token in the background. ",
+                    exception.getMessage(), exception.getCode());
+        } finally {
+            Telemetry.getInstance().flush(telemetryRequestId);
+        }
+
+        return null;
+    }
+
+    /**
+     * Token to refresh. It keeps the application context and the store of the app rather than the
+     * {@link DelegatingCache} wrapping it, the wrapper is created again for each refresh.
+     */
+    private static final class TrackedToken {
+        private final Context mAppContext;
+        private final ITokenCacheStore mTokenCacheStore;
+        private final boolean mIsDelegating;
+        private final boolean mValidateAuthority;
+        private final AuthenticationRequest mRequest;
+        private boolean mIsUsedSinceRefresh;
+
+        TrackedToken(@NonNull final Context appContext, @NonNull final ITokenCacheStore tokenCacheStore,
+                     final boolean validateAuthority, @NonNull final AuthenticationRequest request) {
+            mAppContext = appContext.getApplicationContext();
+            mIsDelegating = tokenCacheStore instanceof DelegatingCache;
+            mTokenCacheStore = mIsDelegating
+                    ? ((DelegatingCache) tokenCacheStore).getDelegateCache() : tokenCacheStore;
+            mValidateAuthority = validateAuthority;
+            mRequest = request;
+        }
+
+        ITokenCacheStore getTokenCacheStore() {
+            return mIsDelegating ? new DelegatingCache(mAppContext, mTokenCacheStore) : mTokenCacheStore;
+        }
+
+        AuthenticationRequest createRefreshRequest(@NonNull final String telemetryRequestId) {
+            final AuthenticationRequest refreshRequest = new AuthenticationRequest(mRequest.getAuthority(),
+                    mRequest.getResource(), mRequest.getClientId(), mRequest.getUserId(), UUID.randomUUID(),
+                    mRequest.getIsExtendedLifetimeEnabled(), true, null);
+            refreshRequest.setLoginHint(mRequest.getLoginHint());
+            refreshRequest.setUserIdentifierType(mRequest.getUserIdentifierType());
+            refreshRequest.setSilent(true);
+            refreshRequest.setPrompt(PromptBehavior.Auto);
+            refreshRequest.setClientCapabilities(mRequest.getClientCapabilities());
+            refreshRequest.setAppName(mRequest.getAppName());
+            refreshRequest.setAppVersion(mRequest.getAppVersion());
+            refreshRequest.setTelemetryRequestId(telemetryRequestId);
+            return refreshRequest;
+        }
+    }
+}
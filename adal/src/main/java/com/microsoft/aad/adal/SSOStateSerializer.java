@@ -55,11 +55,11 @@ final class SSOStateSerializer {
 
     /**
      * To customize the serialize/deserialize process and provide a more
-     * lightweight TokenCacheItem, FamilyTokenCacheItemAdapter is used here to
+     * lightweight TokenCacheItem, FamilyTokenCacheItemTypeAdapter is used here to
      * register custom serializer.
      */
     private static final Gson GSON = new GsonBuilder()
-            .registerTypeAdapter(TokenCacheItem.class, new TokenCacheItemSerializationAdapater())
+            .registerTypeAdapter(TokenCacheItem.class, new FamilyTokenCacheItemTypeAdapter())
             .create();
 
     /**
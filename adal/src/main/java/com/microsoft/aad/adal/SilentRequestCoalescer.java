@@ -0,0 +1,162 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.aad.adal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks the silent token requests in flight, so that identical silent requests made while one
+ * is in flight get its result instead of looking up the cache and refreshing the token again.
+ * Requests are identical if they ask for the same token from the same token cache. Every
+ * {@link DefaultTokenCacheStore} of a package is the same token cache, as they share their
+ * preferences file.
+ */
+final class SilentRequestCoalescer {
+
+    private static final SilentRequestCoalescer INSTANCE = new SilentRequestCoalescer();
+
+    /**
+     * Callbacks of the requests attached to the request in flight, by key. The list also
+     * identifies the request in flight which owns the entry.
+     */
+    private final Map<Key, List<AuthenticationCallback<AuthenticationResult>>> mInFlightRequests = new HashMap<>();
+
+    static SilentRequestCoalescer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param request         The request.
+     * @param tokenCacheStore The token cache the request is served from.
+     * @return Key of the requests the request can be coalesced with, or null if it can't be
+     * coalesced: only silent requests without forced refresh, claims or assertion are.
+     */
+    @Nullable
+    static Key getKey(@NonNull final AuthenticationRequest request, @Nullable final ITokenCacheStore tokenCacheStore) {
+        if (!request.isSilent() || request.getForceRefresh() || request.isClaimsChallengePresent()
+                || request.getSamlAssertion() != null) {
+            return null;
+        }
+
+        // Every AuthenticationContext wraps the store given by the app in its own DelegatingCache
+        final ITokenCacheStore store = tokenCacheStore instanceof DelegatingCache
+                ? ((DelegatingCache) tokenCacheStore).getDelegateCache() : tokenCacheStore;
+        final String requestKey = TokenRequestExecutor.getKey(request) + "$" + request.getIsExtendedLifetimeEnabled()
+                + "$" + request.getClientCapabilities();
+        if (store instanceof DefaultTokenCacheStore) {
+            return new Key(requestKey, ((DefaultTokenCacheStore) store).getCacheName(), null);
+        }
+
+        return new Key(requestKey, null, store);
+    }
+
+    /**
+     * Start a request, or attach the callback to the identical request in flight.
+     *
+     * @return The list of callbacks attached to the started request, which the request passes to
+     * {@link #complete(Key, List)}, or null if the callback will get the result of the request
+     * in flight.
+     */
+    @Nullable
+    List<AuthenticationCallback<AuthenticationResult>> start(
+            @NonNull final Key key, @NonNull final AuthenticationCallback<AuthenticationResult> callback) {
+        synchronized (mInFlightRequests) {
+            final List<AuthenticationCallback<AuthenticationResult>> callbacks = mInFlightRequests.get(key);
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return null;
+            }
+
+            final List<AuthenticationCallback<AuthenticationResult>> startedCallbacks = new ArrayList<>();
+            mInFlightRequests.put(key, startedCallbacks);
+            return startedCallbacks;
+        }
+    }
+
+    /**
+     * Complete the request in flight. Requests started afterwards are performed again.
+     *
+     * @param key       Key of the request.
+     * @param callbacks The list returned by {@link #start} when the request was started.
+     * @return The callbacks of the requests attached to it, empty if it was already completed.
+     * An identical request started since then is left in flight.
+     */
+    @NonNull
+    List<AuthenticationCallback<AuthenticationResult>> complete(
+            @NonNull final Key key, @NonNull final List<AuthenticationCallback<AuthenticationResult>> callbacks) {
+        synchronized (mInFlightRequests) {
+            if (mInFlightRequests.get(key) != callbacks) {
+                return new ArrayList<>();
+            }
+
+            mInFlightRequests.remove(key);
+            return callbacks;
+        }
+    }
+
+    /**
+     * Identifies the requested token and the token cache it is served from: the name of a
+     * persisted cache, or else the store instance.
+     */
+    static final class Key {
+        private final String mRequestKey;
+        private final String mCacheName;
+        private final ITokenCacheStore mTokenCacheStore;
+
+        Key(@NonNull final String requestKey, @Nullable final String cacheName,
+            @Nullable final ITokenCacheStore tokenCacheStore) {
+            mRequestKey = requestKey;
+            mCacheName = cacheName;
+            mTokenCacheStore = tokenCacheStore;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+
+            final Key otherKey = (Key) other;
+            if (!mRequestKey.equals(otherKey.mRequestKey)) {
+                return false;
+            }
+
+            return mCacheName == null
+                    ? otherKey.mCacheName == null && mTokenCacheStore == otherKey.mTokenCacheStore
+                    : mCacheName.equals(otherKey.mCacheName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mRequestKey.hashCode()
+                    + (mCacheName == null ? System.identityHashCode(mTokenCacheStore) : mCacheName.hashCode());
+        }
+    }
+}
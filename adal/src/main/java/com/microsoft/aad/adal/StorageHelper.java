@@ -51,6 +51,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Locale;
@@ -140,6 +141,13 @@ public class StorageHelper {
 
     private static final String ANDROID_KEY_STORE = "AndroidKeyStore";
 
+    /**
+     * Cipher and Mac are not thread safe and expensive to look up, each thread keeps its own.
+     * They are re-initialized with the key on every use.
+     */
+    private static final ThreadLocal<Cipher> CIPHER = new ThreadLocal<>();
+    private static final ThreadLocal<Mac> MAC = new ThreadLocal<>();
+
     private final Context mContext;
     private final SecureRandom mRandom;
 
@@ -147,11 +155,20 @@ public class StorageHelper {
      * Public and private keys that are generated in AndroidKeyStore.
      */
     private KeyPair mKeyPair;
-    private String mBlobVersion;
-    private SecretKey mKey = null;
-    private SecretKey mHMACKey = null;
     private SecretKey mSecretKeyFromAndroidKeyStore = null;
 
+    /**
+     * Keys used for encryption, loaded once and never changed afterwards.
+     */
+    private volatile CipherKeys mEncryptionKeys = null;
+
+    /**
+     * Keys used for decryption, cached per key version so that concurrent decryption does not
+     * need to take the lock or derive the HMAC key again.
+     */
+    private volatile CipherKeys mAndroidKeyStoreKeys = null;
+    private volatile CipherKeys mUserDefinedKeys = null;
+
     /**
      * Constructor for {@link StorageHelper}.
      *
@@ -172,20 +189,36 @@ public class StorageHelper {
      */
     public String encrypt(final String clearText)
             throws GeneralSecurityException, IOException {
+        if (StringExtensions.isNullOrBlank(clearText)) {
+            throw new IllegalArgumentException("Input is empty or null");
+        }
+
+        return encryptBytes(clearText.getBytes(AuthenticationConstants.ENCODING_UTF8));
+    }
+
+    /**
+     * Encrypt binary data, such as an encoded {@link TokenCacheItem}, into the same blob format as
+     * {@link #encrypt(String)}.
+     *
+     * @param bytes Clear bytes to encrypt.
+     * @return Encrypted blob.
+     * @throws GeneralSecurityException for key related exceptions.
+     * @throws IOException              For general IO related exceptions.
+     */
+    String encryptBytes(final byte[] bytes)
+            throws GeneralSecurityException, IOException {
         final String methodName = ":encrypt";
         Logger.v(TAG + methodName, "Starting encryption");
 
-        if (StringExtensions.isNullOrBlank(clearText)) {
+        if (bytes == null || bytes.length == 0) {
             throw new IllegalArgumentException("Input is empty or null");
         }
 
         // load key for encryption if not loaded
-        mKey = loadSecretKeyForEncryption();
-        mHMACKey = getHMacKey(mKey);
+        final CipherKeys keys = getEncryptionKeys();
 
-        Logger.i(TAG + methodName, "", "Encrypt version:" + mBlobVersion);
-        final byte[] blobVersion = mBlobVersion.getBytes(AuthenticationConstants.ENCODING_UTF8);
-        final byte[] bytes = clearText.getBytes(AuthenticationConstants.ENCODING_UTF8);
+        Logger.i(TAG + methodName, "", "Encrypt version:" + keys.mBlobVersion);
+        final byte[] blobVersion = keys.mBlobVersion.getBytes(AuthenticationConstants.ENCODING_UTF8);
 
         // IV: Initialization vector that is needed to start CBC
         final byte[] iv = new byte[DATA_KEY_LENGTH];
@@ -193,15 +226,15 @@ public class StorageHelper {
         final IvParameterSpec ivSpec = new IvParameterSpec(iv);
 
         // Set to encrypt mode
-        final Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-        final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
-        cipher.init(Cipher.ENCRYPT_MODE, mKey, ivSpec);
+        final Cipher cipher = getCipher();
+        final Mac mac = getMac();
+        cipher.init(Cipher.ENCRYPT_MODE, keys.mKey, ivSpec);
 
         final byte[] encrypted = cipher.doFinal(bytes);
 
         // Mac output to sign encryptedData+IV. Keyversion is not included
         // in the digest. It defines what to use for Mac Key.
-        mac.init(mHMACKey);
+        mac.init(keys.mHMACKey);
         mac.update(blobVersion);
         mac.update(encrypted);
         mac.update(iv);
@@ -236,6 +269,19 @@ public class StorageHelper {
      */
     public String decrypt(final String encryptedBlob)
             throws GeneralSecurityException, IOException {
+        return new String(decryptToBytes(encryptedBlob), AuthenticationConstants.ENCODING_UTF8);
+    }
+
+    /**
+     * Decrypt a blob produced by either {@link #encrypt(String)} or {@link #encryptBytes(byte[])}.
+     *
+     * @param encryptedBlob The blob to decrypt
+     * @return Decrypted bytes.
+     * @throws GeneralSecurityException for key related exceptions.
+     * @throws IOException              For general IO related exceptions.
+     */
+    byte[] decryptToBytes(final String encryptedBlob)
+            throws GeneralSecurityException, IOException {
         final String methodName = ":decrypt";
         Logger.v(TAG + methodName, "Starting decryption");
 
@@ -264,8 +310,7 @@ public class StorageHelper {
                 AuthenticationConstants.ENCODING_UTF8);
         Logger.i(TAG + methodName, "", "Encrypt version:" + keyVersion);
 
-        final SecretKey secretKey = getKey(keyVersion);
-        final SecretKey hmacKey = getHMacKey(secretKey);
+        final CipherKeys keys = getDecryptionKeys(keyVersion);
 
         // byte input array: encryptedData-iv-macDigest
         final int ivIndex = bytes.length - DATA_KEY_LENGTH - HMAC_LENGTH;
@@ -278,9 +323,9 @@ public class StorageHelper {
         // Calculate digest again and compare to the appended value
         // incoming message: version+encryptedData+IV+Digest
         // Digest of EncryptedData+IV excluding key Version and digest
-        final Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-        final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
-        mac.init(hmacKey);
+        final Cipher cipher = getCipher();
+        final Mac mac = getMac();
+        mac.init(keys.mHMACKey);
         mac.update(bytes, 0, macIndex);
         final byte[] macDigest = mac.doFinal();
 
@@ -291,12 +336,11 @@ public class StorageHelper {
         // that IV.
         // It is using same cipher for different version since version# change
         // will mean upgrade to AndroidKeyStore and new Key.
-        cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(bytes, ivIndex,
+        cipher.init(Cipher.DECRYPT_MODE, keys.mKey, new IvParameterSpec(bytes, ivIndex,
                 DATA_KEY_LENGTH));
 
         // Decrypt data bytes from 0 to ivindex
-        final String decrypted = new String(cipher.doFinal(bytes, KEY_VERSION_BLOB_LENGTH,
-                encryptedLength), AuthenticationConstants.ENCODING_UTF8);
+        final byte[] decrypted = cipher.doFinal(bytes, KEY_VERSION_BLOB_LENGTH, encryptedLength);
         Logger.v(TAG + methodName, "Finished decryption");
         return decrypted;
     }
@@ -328,12 +372,86 @@ public class StorageHelper {
             GeneralSecurityException {
         // Loading key only once for performance. If API is upgraded, it will
         // restart the device anyway. It will load the correct key for new API.
-        if (mKey != null && mHMACKey != null) {
-            return mKey;
+        final CipherKeys keys = mEncryptionKeys;
+        if (keys != null) {
+            return keys.mKey;
+        }
+
+        return getKeyOrCreate(defaultBlobVersion);
+    }
+
+    /**
+     * Get the keys to use in encryption, loading them on first use. Once loaded they are
+     * returned without taking the lock.
+     */
+    private CipherKeys getEncryptionKeys() throws IOException, GeneralSecurityException {
+        CipherKeys keys = mEncryptionKeys;
+        if (keys != null) {
+            return keys;
+        }
+
+        synchronized (this) {
+            keys = mEncryptionKeys;
+            if (keys == null) {
+                final byte[] secretKeyData = AuthenticationSettings.INSTANCE.getSecretKeyData();
+                if (secretKeyData == null) {
+                    keys = new CipherKeys(VERSION_ANDROID_KEY_STORE, getKeyOrCreate(VERSION_ANDROID_KEY_STORE), null);
+                    mAndroidKeyStoreKeys = keys;
+                } else {
+                    keys = new CipherKeys(VERSION_USER_DEFINED, getSecretKey(secretKeyData), secretKeyData);
+                    mUserDefinedKeys = keys;
+                }
+                mEncryptionKeys = keys;
+            }
+        }
+
+        return keys;
+    }
+
+    /**
+     * Get the keys to decrypt a blob of the given key version. Keys already derived are returned
+     * without taking the lock, the user provided key is re-derived only if it has changed.
+     */
+    private CipherKeys getDecryptionKeys(final String keyVersion) throws IOException, GeneralSecurityException {
+        switch (keyVersion) {
+            case VERSION_USER_DEFINED:
+                final byte[] secretKeyData = AuthenticationSettings.INSTANCE.getSecretKeyData();
+                CipherKeys userDefinedKeys = mUserDefinedKeys;
+                if (userDefinedKeys == null || !userDefinedKeys.isDerivedFrom(secretKeyData)) {
+                    userDefinedKeys = new CipherKeys(VERSION_USER_DEFINED, getSecretKey(secretKeyData), secretKeyData);
+                    mUserDefinedKeys = userDefinedKeys;
+                }
+                return userDefinedKeys;
+            case VERSION_ANDROID_KEY_STORE:
+                CipherKeys androidKeyStoreKeys = mAndroidKeyStoreKeys;
+                if (androidKeyStoreKeys == null) {
+                    androidKeyStoreKeys = new CipherKeys(VERSION_ANDROID_KEY_STORE, getKey(keyVersion), null);
+                    mAndroidKeyStoreKeys = androidKeyStoreKeys;
+                }
+                return androidKeyStoreKeys;
+            default:
+                throw new IOException("Unknown keyVersion.");
         }
+    }
 
-        mBlobVersion = defaultBlobVersion;
-        return getKeyOrCreate(mBlobVersion);
+    private static Cipher getCipher() throws GeneralSecurityException {
+        Cipher cipher = CIPHER.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            CIPHER.set(cipher);
+        }
+
+        return cipher;
+    }
+
+    private static Mac getMac() throws GeneralSecurityException {
+        Mac mac = MAC.get();
+        if (mac == null) {
+            mac = Mac.getInstance(HMAC_ALGORITHM);
+            MAC.set(mac);
+        }
+
+        return mac;
     }
 
     /**
@@ -504,7 +622,7 @@ public class StorageHelper {
                 .build();
     }
 
-    private SecretKey getSecretKey(final byte[] rawBytes) {
+    private static SecretKey getSecretKey(final byte[] rawBytes) {
         if (rawBytes == null) {
             throw new IllegalArgumentException("rawBytes");
         }
@@ -519,7 +637,7 @@ public class StorageHelper {
      * @return SecretKey
      * @throws NoSuchAlgorithmException
      */
-    private SecretKey getHMacKey(final SecretKey key) throws NoSuchAlgorithmException {
+    private static SecretKey getHMacKey(final SecretKey key) throws NoSuchAlgorithmException {
         // Some keys may not produce byte[] with getEncoded
         final byte[] encodedKey = key.getEncoded();
         if (encodedKey != null) {
@@ -676,4 +794,29 @@ public class StorageHelper {
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Immutable pair of the key used for encryption and the HMAC key derived from it.
+     */
+    private static final class CipherKeys {
+        private final String mBlobVersion;
+        private final SecretKey mKey;
+        private final SecretKey mHMACKey;
+
+        /**
+         * The user provided key data the keys were derived from, null for AndroidKeyStore.
+         */
+        private final byte[] mSecretKeyData;
+
+        CipherKeys(final String blobVersion, final SecretKey key, final byte[] secretKeyData)
+                throws NoSuchAlgorithmException {
+            mBlobVersion = blobVersion;
+            mKey = key;
+            mHMACKey = getHMacKey(key);
+            mSecretKeyData = secretKeyData == null ? null : secretKeyData.clone();
+        }
+
+        boolean isDerivedFrom(final byte[] secretKeyData) {
+            return Arrays.equals(mSecretKeyData, secretKeyData);
+        }
+    }
+}
@@ -49,8 +49,14 @@ import com.microsoft.identity.common.java.providers.microsoft.azureactivedirecto
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static com.microsoft.aad.adal.TokenEntryType.FRT_TOKEN_ENTRY;
 import static com.microsoft.aad.adal.TokenEntryType.MRRT_TOKEN_ENTRY;
@@ -68,10 +74,22 @@ class TokenCacheAccessor {
     private String mAuthority; // Remove final to update the authority when preferred cache location is not the same as passed in authority
 
     private final String mTelemetryRequestId;
+    private final Context mAppContext;
+    private final CacheKeyBuilder mKeyBuilder = new CacheKeyBuilder();
     private boolean mUseCommonCache = false;
-    private ADALOAuth2TokenCache mCommonCache = null;
     private boolean mValidateAuthorityHost = true;
 
+    /**
+     * Items fetched by {@link #prefetchSilentLookupItems(String, String, String)}, by cache key.
+     * Keys without a cache item map to null. Dropped on every cache write made through this accessor.
+     */
+    private Map<String, TokenCacheItem> mPrefetchedItems = null;
+
+    /**
+     * The common cache adapters of the last application context used, see {@link #getCommonCaches(Context)}.
+     */
+    private static CommonCaches sCommonCaches;
+
     TokenCacheAccessor(final Context appContext, final ITokenCacheStore tokenCacheStore, final String authority, final String telemetryRequestId) {
         if (tokenCacheStore == null) {
             throw new IllegalArgumentException("tokenCacheStore");
@@ -88,15 +106,7 @@ class TokenCacheAccessor {
         mTokenCacheStore = tokenCacheStore;
         mAuthority = authority;
         mTelemetryRequestId = telemetryRequestId;
-
-        // Setup common cache implementation
-        List<IShareSingleSignOnState<MicrosoftAccount, MicrosoftRefreshToken>> sharedSSOCaches = new ArrayList<>();
-
-        // Set up the MsalOAuth2TokenCache
-        final MsalOAuth2TokenCache msalOAuth2TokenCache = getMsalOAuth2TokenCache(appContext);
-
-        sharedSSOCaches.add(msalOAuth2TokenCache);
-        mCommonCache = new ADALOAuth2TokenCache(appContext, sharedSSOCaches);
+        mAppContext = appContext;
 
         if (mTokenCacheStore instanceof DelegatingCache) {
             final ITokenCacheStore delegate = ((DelegatingCache) mTokenCacheStore).getDelegateCache();
@@ -106,21 +116,70 @@ class TokenCacheAccessor {
         }
     }
 
-    static MsalOAuth2TokenCache getMsalOAuth2TokenCache(@NonNull final Context appContext) {
-        final IAccountCredentialCache accountCredentialCache = new SharedPreferencesAccountCredentialCache(
-                new CacheKeyValueDelegate(),
-                new SharedPreferencesFileManager(
-                        appContext,
-                        DEFAULT_ACCOUNT_CREDENTIAL_SHARED_PREFERENCES,
-                        new AndroidAuthSdkStorageEncryptionManager(appContext, null)
-                )
-        );
+    static MsalOAuth2TokenCache getMsalOAuth2TokenCache(@NonNull final Context context) {
+        return getCommonCaches(context).getMsalOAuth2TokenCache();
+    }
 
-        return new MsalOAuth2TokenCache(
-                appContext,
-                accountCredentialCache,
-                new MicrosoftStsAccountCredentialAdapter()
-        );
+    /**
+     * The common cache adapters are only built when first used, and are shared by every request
+     * made with the same application context. Only the application context of the given context
+     * is kept, so that an Activity is never retained by the static field.
+     */
+    private static CommonCaches getCommonCaches(@NonNull final Context context) {
+        final Context appContext = context.getApplicationContext();
+        synchronized (TokenCacheAccessor.class) {
+            if (sCommonCaches == null || sCommonCaches.mAppContext != appContext) {
+                sCommonCaches = new CommonCaches(appContext);
+            }
+
+            return sCommonCaches;
+        }
+    }
+
+    private static final class CommonCaches {
+        private final Context mAppContext;
+        private MsalOAuth2TokenCache mMsalOAuth2TokenCache;
+        private ADALOAuth2TokenCache mAdalOAuth2TokenCache;
+
+        CommonCaches(@NonNull final Context appContext) {
+            mAppContext = appContext;
+        }
+
+        synchronized MsalOAuth2TokenCache getMsalOAuth2TokenCache() {
+            if (mMsalOAuth2TokenCache == null) {
+                final IAccountCredentialCache accountCredentialCache = new SharedPreferencesAccountCredentialCache(
+                        new CacheKeyValueDelegate(),
+                        new SharedPreferencesFileManager(
+                                mAppContext,
+                                DEFAULT_ACCOUNT_CREDENTIAL_SHARED_PREFERENCES,
+                                new AndroidAuthSdkStorageEncryptionManager(mAppContext, null)
+                        )
+                );
+
+                mMsalOAuth2TokenCache = new MsalOAuth2TokenCache(
+                        mAppContext,
+                        accountCredentialCache,
+                        new MicrosoftStsAccountCredentialAdapter()
+                );
+            }
+
+            return mMsalOAuth2TokenCache;
+        }
+
+        synchronized ADALOAuth2TokenCache getAdalOAuth2TokenCache() {
+            if (mAdalOAuth2TokenCache == null) {
+                // Setup common cache implementation
+                final List<IShareSingleSignOnState<MicrosoftAccount, MicrosoftRefreshToken>> sharedSSOCaches = new ArrayList<>();
+                sharedSSOCaches.add(getMsalOAuth2TokenCache());
+                mAdalOAuth2TokenCache = new ADALOAuth2TokenCache(mAppContext, sharedSSOCaches);
+            }
+
+            return mAdalOAuth2TokenCache;
+        }
+    }
+
+    ITokenCacheStore getTokenCacheStore() {
+        return mTokenCacheStore;
     }
 
     public boolean isValidateAuthorityHost() {
@@ -131,6 +190,52 @@ class TokenCacheAccessor {
         this.mValidateAuthorityHost = mValidateAuthorityHost;
     }
 
+    /**
+     * Fetch, in one {@link ITokenCacheStore#getItems(java.util.Collection)} call, every cache entry the
+     * silent lookup may read for the request: the regular token, MRRT and FRT entries under the
+     * preferred cache authority, the passed in authority and all the aliased hosts. The lookups
+     * made afterwards are answered from the fetched items until the cache is written through
+     * this accessor. Entries of a family other than the Microsoft family are still read one by one.
+     */
+    void prefetchSilentLookupItems(final String resource, final String clientId, final String user)
+            throws MalformedURLException {
+        final String methodName = ":prefetchSilentLookupItems";
+        final String preferredCacheAuthority = getAuthorityUrlWithPreferredCache();
+        final List<String> authorities = new ArrayList<>();
+        authorities.add(preferredCacheAuthority);
+        if (!preferredCacheAuthority.equalsIgnoreCase(mAuthority)) {
+            authorities.add(mAuthority);
+        }
+
+        final InstanceDiscoveryMetadata instanceDiscoveryMetadata = getInstanceDiscoveryMetadata();
+        if (instanceDiscoveryMetadata != null) {
+            for (final String aliasHost : instanceDiscoveryMetadata.getAliases()) {
+                final String authority = constructAuthorityUrl(aliasHost);
+                if (!authority.equalsIgnoreCase(mAuthority) && !authority.equalsIgnoreCase(preferredCacheAuthority)) {
+                    authorities.add(authority);
+                }
+            }
+        }
+
+        final Set<String> keys = new LinkedHashSet<>();
+        for (final String authority : authorities) {
+            keys.add(mKeyBuilder.createCacheKeyForRTEntry(authority, resource, clientId, user));
+            keys.add(mKeyBuilder.createCacheKeyForMRRT(authority, clientId, user));
+            if (!StringExtensions.isNullOrBlank(user)) {
+                keys.add(mKeyBuilder.createCacheKeyForFRT(authority, AuthenticationConstants.MS_FAMILY_ID, user));
+            }
+        }
+
+        final Map<String, TokenCacheItem> items = mTokenCacheStore.getItems(keys);
+        final Map<String, TokenCacheItem> prefetchedItems = new HashMap<>();
+        for (final String key : keys) {
+            prefetchedItems.put(key, items.get(key));
+        }
+
+        Logger.v(TAG + methodName, "Fetched " + items.size() + " of " + keys.size() + " cache entries.");
+        mPrefetchedItems = prefetchedItems;
+    }
+
     /**
      * @return Access token from cache. Could be null if AT does not exist or expired.
      * This will be a strict match with the user passed in, could be unique userid,
@@ -170,6 +275,36 @@ class TokenCacheAccessor {
         return accessTokenItem;
     }
 
+    /**
+     * Get the access token that {@link #getATFromCache(String, String, String)} treats as
+     * expired because it expires within {@link AuthenticationSettings#getExpirationBuffer()},
+     * although it's still valid.
+     *
+     * @return The {@link TokenCacheItem} of the access token, or null if there is no access
+     * token still valid for the user.
+     * @throws AuthenticationException
+     */
+    TokenCacheItem getATWithinExpirationBuffer(final String resource, final String clientId, final String user)
+            throws AuthenticationException {
+        final String methodName = ":getATWithinExpirationBuffer";
+        final TokenCacheItem accessTokenItem;
+        try {
+            accessTokenItem = getRegularRefreshTokenCacheItem(resource, clientId, user);
+        } catch (final MalformedURLException ex) {
+            throw new AuthenticationException(ADALError.DEVELOPER_AUTHORITY_IS_NOT_VALID_URL, ex.getMessage(), ex);
+        }
+
+        if (accessTokenItem == null || StringExtensions.isNullOrBlank(accessTokenItem.getAccessToken())
+                || accessTokenItem.getExpiresOn() == null
+                || !accessTokenItem.getExpiresOn().after(new Date())
+                || isUserMisMatch(user, accessTokenItem)) {
+            return null;
+        }
+
+        Logger.v(TAG + methodName, "Access token expires within the expiration buffer.");
+        return accessTokenItem;
+    }
+
     /**
      * @return {@link TokenCacheItem} for regular token cache entry.
      */
@@ -177,9 +312,9 @@ class TokenCacheAccessor {
         final CacheEvent cacheEvent = startCacheTelemetryRequest(EventStrings.TOKEN_TYPE_RT);
 
         // try preferred cache location first
-        final String cacheKey = CacheKey.createCacheKeyForRTEntry(getAuthorityUrlWithPreferredCache(), resource, clientId, user);
+        final String cacheKey = mKeyBuilder.createCacheKeyForRTEntry(getAuthorityUrlWithPreferredCache(), resource, clientId, user);
 
-        TokenCacheItem item = mTokenCacheStore.getItem(cacheKey);
+        TokenCacheItem item = getCachedItem(cacheKey);
         // try all the alias
         if (item == null) {
             item = performAdditionalCacheLookup(resource, clientId, null, user, REGULAR_TOKEN_ENTRY);
@@ -199,9 +334,9 @@ class TokenCacheAccessor {
      */
     TokenCacheItem getMRRTItem(final String clientId, final String user) throws MalformedURLException {
         final CacheEvent cacheEvent = startCacheTelemetryRequest(EventStrings.TOKEN_TYPE_MRRT);
-        final String cacheKey = CacheKey.createCacheKeyForMRRT(getAuthorityUrlWithPreferredCache(), clientId, user);
+        final String cacheKey = mKeyBuilder.createCacheKeyForMRRT(getAuthorityUrlWithPreferredCache(), clientId, user);
 
-        TokenCacheItem item = mTokenCacheStore.getItem(cacheKey);
+        TokenCacheItem item = getCachedItem(cacheKey);
         if (item == null) {
             item = performAdditionalCacheLookup(null, clientId, null, user, MRRT_TOKEN_ENTRY);
         }
@@ -226,9 +361,9 @@ class TokenCacheAccessor {
             return null;
         }
 
-        final String cacheKey = CacheKey.createCacheKeyForFRT(getAuthorityUrlWithPreferredCache(), familyClientId, user);
+        final String cacheKey = mKeyBuilder.createCacheKeyForFRT(getAuthorityUrlWithPreferredCache(), familyClientId, user);
 
-        TokenCacheItem item = mTokenCacheStore.getItem(cacheKey);
+        TokenCacheItem item = getCachedItem(cacheKey);
         if (item == null) {
             item = performAdditionalCacheLookup(null, null, familyClientId, user, FRT_TOKEN_ENTRY);
         }
@@ -312,6 +447,7 @@ class TokenCacheAccessor {
      * Update token cache with returned auth result.
      */
     void updateTokenCache(final AuthenticationRequest request, final AuthenticationResult result) throws MalformedURLException {
+        mPrefetchedItems = null;
         if (result == null || StringExtensions.isNullOrBlank(result.getAccessToken())) {
             return;
         }
@@ -327,23 +463,41 @@ class TokenCacheAccessor {
             return;
         }
 
+        final String methodName = ":updateTokenCache";
+        logReturnedToken(result);
+
+        final CacheEvent cacheEvent = new CacheEvent(EventStrings.TOKEN_CACHE_WRITE);
+        cacheEvent.setRequestId(mTelemetryRequestId);
+        Telemetry.getInstance().startEvent(mTelemetryRequestId, EventStrings.TOKEN_CACHE_WRITE);
+
+        // All the entries for the returned token are persisted as one batch.
+        final Map<String, TokenCacheItem> itemsToSet = new LinkedHashMap<>();
         if (result.getUserInfo() != null) {
             // update cache entry with displayableId
             if (!StringExtensions.isNullOrBlank(result.getUserInfo().getDisplayableId())) {
-                setItemToCacheForUser(request.getResource(), request.getClientId(), result, result.getUserInfo().getDisplayableId());
+                addItemsToCacheForUser(request.getResource(), request.getClientId(), result, result.getUserInfo().getDisplayableId(),
+                        itemsToSet, cacheEvent);
             }
 
             // update cache entry with userId
             if (!StringExtensions.isNullOrBlank(result.getUserInfo().getUserId())) {
-                setItemToCacheForUser(request.getResource(), request.getClientId(), result, result.getUserInfo().getUserId());
+                addItemsToCacheForUser(request.getResource(), request.getClientId(), result, result.getUserInfo().getUserId(),
+                        itemsToSet, cacheEvent);
             }
         }
 
         // update for empty userid
-        setItemToCacheForUser(request.getResource(), request.getClientId(), result, null);
+        addItemsToCacheForUser(request.getResource(), request.getClientId(), result, null, itemsToSet, cacheEvent);
+
+        Logger.v(TAG + methodName, "Save " + itemsToSet.size() + " token cache entries.");
+        mTokenCacheStore.setItems(itemsToSet);
+        Telemetry.getInstance().stopEvent(mTelemetryRequestId, cacheEvent,
+                EventStrings.TOKEN_CACHE_WRITE);
     }
 
     void updateTokenCacheUsingCommonCache(final AuthenticationRequest request, final AuthenticationResult result) throws MalformedURLException {
+        // The common cache writes to the same storage, bypassing the store.
+        mPrefetchedItems = null;
         AzureActiveDirectory ad = new AzureActiveDirectory();
         AzureActiveDirectoryTokenResponse tokenResponse = CoreAdapter.asAadTokenResponse(result);
         AzureActiveDirectoryOAuth2Configuration config = new AzureActiveDirectoryOAuth2Configuration();
@@ -368,7 +522,12 @@ class TokenCacheAccessor {
             aadAuthRequestBuilder.setAuthority(new URL(mAuthority));
         }
 
-        mCommonCache.save(strategy, aadAuthRequestBuilder.build(), tokenResponse);
+        getCommonCaches(mAppContext).getAdalOAuth2TokenCache().save(strategy, aadAuthRequestBuilder.build(), tokenResponse);
+
+        final DefaultTokenCacheStore defaultTokenCacheStore = getDefaultTokenCacheStore();
+        if (defaultTokenCacheStore != null) {
+            defaultTokenCacheStore.onItemsWrittenOutsideOfStore();
+        }
     }
 
 
@@ -383,6 +542,7 @@ class TokenCacheAccessor {
     void removeTokenCacheItem(final TokenCacheItem tokenCacheItem, final String resource)
             throws AuthenticationException {
         final String methodName = ":removeTokenCacheItem";
+        mPrefetchedItems = null;
         final CacheEvent cacheEvent = new CacheEvent(EventStrings.TOKEN_CACHE_DELETE);
         cacheEvent.setRequestId(mTelemetryRequestId);
         Telemetry.getInstance().startEvent(mTelemetryRequestId, EventStrings.TOKEN_CACHE_DELETE);
@@ -418,78 +578,95 @@ class TokenCacheAccessor {
                 throw new AuthenticationException(ADALError.INVALID_TOKEN_CACHE_ITEM);
         }
 
-        for (final String key : keys) {
-            mTokenCacheStore.removeItem(key);
-        }
+        mTokenCacheStore.removeItems(keys);
         Telemetry.getInstance().stopEvent(mTelemetryRequestId, cacheEvent,
                 EventStrings.TOKEN_CACHE_DELETE);
     }
 
     boolean isMultipleRTsMatchingGivenAppAndResource(final String clientId, final String resource) {
+        final DefaultTokenCacheStore defaultTokenCacheStore = getDefaultTokenCacheStore();
+        if (defaultTokenCacheStore != null) {
+            return defaultTokenCacheStore.getSyncedIndex().getRegularTokenCount(mAuthority, clientId, resource) > 1;
+        }
+
         final Iterator<TokenCacheItem> allItems = mTokenCacheStore.getAll();
-        final List<TokenCacheItem> regularRTsMatchingRequest = new ArrayList<>();
+        int regularRTsMatchingRequest = 0;
         while (allItems.hasNext()) {
             final TokenCacheItem tokenCacheItem = allItems.next();
             if (mAuthority.equalsIgnoreCase(tokenCacheItem.getAuthority()) && clientId.equalsIgnoreCase(tokenCacheItem.getClientId())
-                    && resource.equalsIgnoreCase(tokenCacheItem.getResource()) && !tokenCacheItem.getIsMultiResourceRefreshToken()) {
-                regularRTsMatchingRequest.add(tokenCacheItem);
+                    && resource.equalsIgnoreCase(tokenCacheItem.getResource()) && !tokenCacheItem.getIsMultiResourceRefreshToken()
+                    && ++regularRTsMatchingRequest > 1) {
+                return true;
             }
         }
 
-        return regularRTsMatchingRequest.size() > 1;
+        return false;
     }
 
     boolean isMultipleMRRTsMatchingGivenApp(final String clientId) {
+        final DefaultTokenCacheStore defaultTokenCacheStore = getDefaultTokenCacheStore();
+        if (defaultTokenCacheStore != null) {
+            return defaultTokenCacheStore.getSyncedIndex().getMultiResourceTokenCount(mAuthority, clientId) > 1;
+        }
+
         final Iterator<TokenCacheItem> allItems = mTokenCacheStore.getAll();
-        final List<TokenCacheItem> mrrtsMatchingRequest = new ArrayList<>();
+        int mrrtsMatchingRequest = 0;
         while (allItems.hasNext()) {
             final TokenCacheItem tokenCacheItem = allItems.next();
-            if (tokenCacheItem.getAuthority().equalsIgnoreCase(mAuthority) && tokenCacheItem.getClientId().equalsIgnoreCase(clientId)
-                    && (tokenCacheItem.getIsMultiResourceRefreshToken() || StringExtensions.isNullOrBlank(tokenCacheItem.getResource()))) {
-                mrrtsMatchingRequest.add(tokenCacheItem);
+            if (tokenCacheItem.getAuthority().equalsIgnoreCase(mAuthority) && clientId.equalsIgnoreCase(tokenCacheItem.getClientId())
+                    && (tokenCacheItem.getIsMultiResourceRefreshToken() || StringExtensions.isNullOrBlank(tokenCacheItem.getResource()))
+                    && ++mrrtsMatchingRequest > 1) {
+                return true;
             }
         }
 
-        return mrrtsMatchingRequest.size() > 1;
+        return false;
+    }
+
+    /**
+     * @return The {@link DefaultTokenCacheStore} backing this accessor, null if another store is in use.
+     */
+    private DefaultTokenCacheStore getDefaultTokenCacheStore() {
+        final ITokenCacheStore store = mTokenCacheStore instanceof DelegatingCache
+                ? ((DelegatingCache) mTokenCacheStore).getDelegateCache()
+                : mTokenCacheStore;
+
+        return store instanceof DefaultTokenCacheStore ? (DefaultTokenCacheStore) store : null;
     }
 
     /**
-     * Update token cache for a given user. If token is MRRT, store two separate entries for regular RT entry and MRRT entry.
+     * Add the entries to store for a given user. If token is MRRT, add two separate entries for regular RT entry and MRRT entry.
      * Ideally, if returned token is MRRT, we should not store RT along with AT. However, there may be caller taking dependency
      * on RT.
-     * If the token is FRT, store three separate entries.
+     * If the token is FRT, add three separate entries.
      */
-    private void setItemToCacheForUser(final String resource, final String clientId, final AuthenticationResult result, final String userId) throws MalformedURLException {
-        final String methodName = ":setItemToCacheForUser";
-        logReturnedToken(result);
+    private void addItemsToCacheForUser(final String resource, final String clientId, final AuthenticationResult result,
+                                        final String userId, final Map<String, TokenCacheItem> itemsToSet,
+                                        final CacheEvent cacheEvent) throws MalformedURLException {
+        final String methodName = ":addItemsToCacheForUser";
         Logger.v(TAG + methodName, "Save regular token into cache.");
 
-        final CacheEvent cacheEvent = new CacheEvent(EventStrings.TOKEN_CACHE_WRITE);
-        cacheEvent.setRequestId(mTelemetryRequestId);
-        Telemetry.getInstance().startEvent(mTelemetryRequestId, EventStrings.TOKEN_CACHE_WRITE);
-
         // new tokens will only be saved into preferred cache location
-        mTokenCacheStore.setItem(CacheKey.createCacheKeyForRTEntry(getAuthorityUrlWithPreferredCache(), resource, clientId, userId),
-                TokenCacheItem.createRegularTokenCacheItem(getAuthorityUrlWithPreferredCache(), resource, clientId, result));
+        final String preferredAuthority = getAuthorityUrlWithPreferredCache();
+        itemsToSet.put(mKeyBuilder.createCacheKeyForRTEntry(preferredAuthority, resource, clientId, userId),
+                TokenCacheItem.createRegularTokenCacheItem(preferredAuthority, resource, clientId, result));
         cacheEvent.setTokenTypeRT(true);
 
         // Store separate entries for MRRT.  
         if (result.getIsMultiResourceRefreshToken()) {
             Logger.v(TAG + methodName, "Save Multi Resource Refresh token to cache.");
-            mTokenCacheStore.setItem(CacheKey.createCacheKeyForMRRT(getAuthorityUrlWithPreferredCache(), clientId, userId),
-                    TokenCacheItem.createMRRTTokenCacheItem(getAuthorityUrlWithPreferredCache(), clientId, result));
+            itemsToSet.put(mKeyBuilder.createCacheKeyForMRRT(preferredAuthority, clientId, userId),
+                    TokenCacheItem.createMRRTTokenCacheItem(preferredAuthority, clientId, result));
             cacheEvent.setTokenTypeMRRT(true);
         }
 
         // Store separate entries for FRT.
         if (!StringExtensions.isNullOrBlank(result.getFamilyClientId()) && !StringExtensions.isNullOrBlank(userId)) {
             Logger.v(TAG + methodName, "Save Family Refresh token into cache.");
-            final TokenCacheItem familyTokenCacheItem = TokenCacheItem.createFRRTTokenCacheItem(getAuthorityUrlWithPreferredCache(), result);
-            mTokenCacheStore.setItem(CacheKey.createCacheKeyForFRT(getAuthorityUrlWithPreferredCache(), result.getFamilyClientId(), userId), familyTokenCacheItem);
+            final TokenCacheItem familyTokenCacheItem = TokenCacheItem.createFRRTTokenCacheItem(preferredAuthority, result);
+            itemsToSet.put(mKeyBuilder.createCacheKeyForFRT(preferredAuthority, result.getFamilyClientId(), userId), familyTokenCacheItem);
             cacheEvent.setTokenTypeFRT(true);
         }
-        Telemetry.getInstance().stopEvent(mTelemetryRequestId, cacheEvent,
-                EventStrings.TOKEN_CACHE_WRITE);
     }
 
     /**
@@ -531,9 +708,9 @@ class TokenCacheAccessor {
             @Override
             public String makeKey(String authority, String clientId, String userId) {
                 if (isFRT) {
-                    return CacheKey.createCacheKeyForFRT(authority, clientId, userId);
+                    return mKeyBuilder.createCacheKeyForFRT(authority, clientId, userId);
                 }
-                return CacheKey.createCacheKeyForMRRT(authority, clientId, userId);
+                return mKeyBuilder.createCacheKeyForMRRT(authority, clientId, userId);
             }
         };
         // Remove the cache key with preferred authority.
@@ -568,17 +745,17 @@ class TokenCacheAccessor {
         final String clientId = item.getClientId();
         final UserInfo userInfo = item.getUserInfo();
 
-        keys.add(CacheKey.createCacheKeyForRTEntry(authority, resource, clientId, null));
+        keys.add(mKeyBuilder.createCacheKeyForRTEntry(authority, resource, clientId, null));
 
         if (userInfo != null) {
             if (userInfo.getDisplayableId() != null) {
-                keys.add(CacheKey.createCacheKeyForRTEntry(authority, resource, clientId, userInfo.getDisplayableId()));
+                keys.add(mKeyBuilder.createCacheKeyForRTEntry(authority, resource, clientId, userInfo.getDisplayableId()));
             }
             if (userInfo.getUserId() != null) {
-                keys.add(CacheKey.createCacheKeyForRTEntry(authority, resource, clientId, userInfo.getUserId()));
+                keys.add(mKeyBuilder.createCacheKeyForRTEntry(authority, resource, clientId, userInfo.getUserId()));
                 if (item.getTenantId() != null) {
                     String uniqueId = getUniqueIdentifierForCacheKey(userInfo.getUserId(), item.getTenantId());
-                    keys.add(CacheKey.createCacheKeyForRTEntry(authority, resource, clientId, uniqueId));
+                    keys.add(mKeyBuilder.createCacheKeyForRTEntry(authority, resource, clientId, uniqueId));
                 }
             }
         }
@@ -648,7 +825,7 @@ class TokenCacheAccessor {
     }
 
     private String getUniqueIdentifierForCacheKey(final String userId, final String tenantId) {
-        return StringExtensions.base64UrlEncodeToString(userId) + "." + StringExtensions.base64UrlEncodeToString(tenantId);
+        return mKeyBuilder.getUniqueIdentifier(userId, tenantId);
     }
 
     private boolean isUserMisMatch(final String user, final TokenCacheItem tokenCacheItem) {
@@ -688,6 +865,15 @@ class TokenCacheAccessor {
         return cacheEvent;
     }
 
+    private TokenCacheItem getCachedItem(final String cacheKey) {
+        final Map<String, TokenCacheItem> prefetchedItems = mPrefetchedItems;
+        if (prefetchedItems != null && prefetchedItems.containsKey(cacheKey)) {
+            return prefetchedItems.get(cacheKey);
+        }
+
+        return mTokenCacheStore.getItem(cacheKey);
+    }
+
     private TokenCacheItem performAdditionalCacheLookup(final String resource, final String clientid, final String familyClientId,
                                                         final String user, final TokenEntryType type) throws MalformedURLException {
         TokenCacheItem item = getTokenCacheItemFromPassedInAuthority(resource, clientid, familyClientId, user, type);
@@ -706,7 +892,7 @@ class TokenCacheAccessor {
         }
 
         final String cacheKeyWithPassedInAuthority = getCacheKey(mAuthority, resource, clientId, user, familyClientId, type);
-        return mTokenCacheStore.getItem(cacheKeyWithPassedInAuthority);
+        return getCachedItem(cacheKeyWithPassedInAuthority);
     }
 
     private TokenCacheItem getTokenCacheItemFromAliasedHost(final String resource, final String clientId, final String familyClientId,
@@ -729,7 +915,7 @@ class TokenCacheAccessor {
 
             final String cacheKeyForAliasedHost = getCacheKey(authority, resource, clientId, user, familyClientId, type);
 
-            final TokenCacheItem item = mTokenCacheStore.getItem(cacheKeyForAliasedHost);
+            final TokenCacheItem item = getCachedItem(cacheKeyForAliasedHost);
             if (item != null) {
                 tokenCacheItemForAliasedHost = item;
                 break;
@@ -744,13 +930,13 @@ class TokenCacheAccessor {
         final String cacheKey;
         switch (type) {
             case REGULAR_TOKEN_ENTRY:
-                cacheKey = CacheKey.createCacheKeyForRTEntry(authority, resource, clientId, user);
+                cacheKey = mKeyBuilder.createCacheKeyForRTEntry(authority, resource, clientId, user);
                 break;
             case MRRT_TOKEN_ENTRY:
-                cacheKey = CacheKey.createCacheKeyForMRRT(authority, clientId, user);
+                cacheKey = mKeyBuilder.createCacheKeyForMRRT(authority, clientId, user);
                 break;
             case FRT_TOKEN_ENTRY:
-                cacheKey = CacheKey.createCacheKeyForFRT(authority, familyClientId, user);
+                cacheKey = mKeyBuilder.createCacheKeyForFRT(authority, familyClientId, user);
                 break;
             default:
                 return null;
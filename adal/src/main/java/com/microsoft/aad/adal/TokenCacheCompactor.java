@@ -0,0 +1,285 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.aad.adal;
+
+import androidx.annotation.NonNull;
+
+import com.microsoft.identity.common.adal.internal.util.StringExtensions;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes the persisted entries of a {@link DefaultTokenCacheStore} that can no longer be used to
+ * get a token. The cache is scanned in batches of at most {@link #BATCH_SIZE} entries, so that
+ * only one batch is decrypted and held in memory at a time, and an entry is only removed if it
+ * was not written again since it was scanned. Removed entries are:
+ * <ul>
+ * <li>entries without refresh token whose access token expired, extended lifetime included.</li>
+ * <li>regular token entries whose access token expired and whose refresh token was superseded
+ * by a more recent multi resource refresh token of the same user and client.</li>
+ * <li>entries of an aliased authority duplicated under the preferred cache authority, when the
+ * instance discovery metadata of the authority is known.</li>
+ * </ul>
+ * Each run reports the number of entries scanned and removed, and the bytes reclaimed, through
+ * a {@link EventStrings#TOKEN_CACHE_COMPACTION} telemetry event.
+ */
+final class TokenCacheCompactor {
+
+    private static final String TAG = TokenCacheCompactor.class.getSimpleName();
+
+    /**
+     * Maximum number of entries decrypted at once.
+     */
+    static final int BATCH_SIZE = 32;
+
+    private static final char CACHE_KEY_DELIMITER = '$';
+
+    /**
+     * Number of components of a {@link CacheKey}: authority, resource, client id, multi resource
+     * flag and user id.
+     */
+    private static final int CACHE_KEY_COMPONENT_COUNT = 5;
+
+    private static final ScheduledExecutorService COMPACTION_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    private final DefaultTokenCacheStore mStore;
+
+    TokenCacheCompactor(@NonNull final DefaultTokenCacheStore store) {
+        mStore = store;
+    }
+
+    /**
+     * Run {@link #compact()} on a background thread every periodMillis.
+     *
+     * @return {@link ScheduledFuture} to cancel the job.
+     */
+    ScheduledFuture<?> schedule(final long periodMillis) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("periodMillis");
+        }
+
+        return COMPACTION_EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (final RuntimeException ex) {
+                    // Keep the job scheduled, the next run scans the cache again.
+                    Logger.e(TAG, "Token cache compaction failed. ", ex.getMessage(),
+                            ADALError.DEVICE_CACHE_IS_NOT_WORKING, ex);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Remove the dead entries on the calling thread.
+     *
+     * @return Number of bytes reclaimed.
+     */
+    long compact() {
+        final String methodName = ":compact";
+        final String requestId = Telemetry.registerNewRequest();
+        final CacheEvent cacheEvent = new CacheEvent(EventStrings.TOKEN_CACHE_COMPACTION);
+        cacheEvent.setRequestId(requestId);
+        Telemetry.getInstance().startEvent(requestId, EventStrings.TOKEN_CACHE_COMPACTION);
+
+        final Map<String, String> persistedValues = mStore.getPersistedEntries();
+        final List<String> keys = new ArrayList<>(persistedValues.keySet());
+        final Map<String, RefreshTokenState> newestMultiResourceTokens = new HashMap<>();
+        final Map<String, RefreshTokenState> supersededCandidates = new HashMap<>();
+        final List<String> deadKeys = new ArrayList<>();
+        final long now = System.currentTimeMillis();
+
+        for (int batchStart = 0; batchStart < keys.size(); batchStart += BATCH_SIZE) {
+            final List<String> batch = keys.subList(batchStart, Math.min(keys.size(), batchStart + BATCH_SIZE));
+            final List<String> batchDeadKeys = new ArrayList<>();
+            for (final Map.Entry<String, TokenCacheItem> entry : mStore.getItems(batch).entrySet()) {
+                final String key = entry.getKey();
+                final TokenCacheItem item = entry.getValue();
+                if (isExpired(item, now) || isAliasDuplicate(key, persistedValues)) {
+                    batchDeadKeys.add(key);
+                    continue;
+                }
+
+                final String group = getUserClientGroup(key);
+                if (group == null || item.getTokenUpdateTime() == null
+                        || StringExtensions.isNullOrBlank(item.getRefreshToken())) {
+                    continue;
+                }
+
+                final TokenEntryType tokenEntryType = item.getTokenEntryType();
+                if (tokenEntryType == TokenEntryType.MRRT_TOKEN_ENTRY) {
+                    final RefreshTokenState newest = newestMultiResourceTokens.get(group);
+                    if (newest == null || newest.mUpdateTime.before(item.getTokenUpdateTime())) {
+                        newestMultiResourceTokens.put(group, new RefreshTokenState(group, item));
+                    }
+                } else if (tokenEntryType == TokenEntryType.REGULAR_TOKEN_ENTRY && isAccessTokenExpired(item, now)) {
+                    supersededCandidates.put(key, new RefreshTokenState(group, item));
+                }
+            }
+
+            deadKeys.addAll(removeUnchanged(batchDeadKeys, persistedValues));
+        }
+
+        // Decided once every multi resource refresh token has been seen.
+        final List<String> supersededKeys = new ArrayList<>();
+        for (final Map.Entry<String, RefreshTokenState> candidate : supersededCandidates.entrySet()) {
+            final RefreshTokenState state = candidate.getValue();
+            final RefreshTokenState newest = newestMultiResourceTokens.get(state.mGroup);
+            if (newest != null && newest.mUpdateTime.after(state.mUpdateTime)
+                    && !newest.mRefreshToken.equals(state.mRefreshToken)) {
+                supersededKeys.add(candidate.getKey());
+            }
+        }
+
+        for (int batchStart = 0; batchStart < supersededKeys.size(); batchStart += BATCH_SIZE) {
+            deadKeys.addAll(removeUnchanged(supersededKeys.subList(batchStart,
+                    Math.min(supersededKeys.size(), batchStart + BATCH_SIZE)), persistedValues));
+        }
+
+        long reclaimedBytes = 0;
+        for (final String key : deadKeys) {
+            reclaimedBytes += key.length() + persistedValues.get(key).length();
+        }
+
+        cacheEvent.setCompactionResult(keys.size(), deadKeys.size(), reclaimedBytes);
+        Telemetry.getInstance().stopEvent(requestId, cacheEvent, EventStrings.TOKEN_CACHE_COMPACTION);
+        Telemetry.getInstance().flush(requestId);
+
+        Logger.v(TAG + methodName, "Removed " + deadKeys.size() + " of " + keys.size()
+                + " entries, reclaimed " + reclaimedBytes + " bytes.");
+        return reclaimedBytes;
+    }
+
+    /**
+     * Remove the keys whose persisted value is still the scanned one.
+     *
+     * @return The keys removed.
+     */
+    private List<String> removeUnchanged(@NonNull final List<String> keys,
+                                         @NonNull final Map<String, String> persistedValues) {
+        final List<String> unchangedKeys = new ArrayList<>();
+        for (final String key : keys) {
+            if (persistedValues.get(key).equals(mStore.getPersistedEntry(key))) {
+                unchangedKeys.add(key);
+            }
+        }
+
+        if (!unchangedKeys.isEmpty()) {
+            mStore.removeItems(unchangedKeys);
+        }
+
+        return unchangedKeys;
+    }
+
+    /**
+     * Same rule as {@link MemoryTokenCacheStore#removeExpiredItems()}.
+     */
+    private static boolean isExpired(@NonNull final TokenCacheItem item, final long now) {
+        return StringExtensions.isNullOrBlank(item.getRefreshToken()) && isAccessTokenExpired(item, now);
+    }
+
+    private static boolean isAccessTokenExpired(@NonNull final TokenCacheItem item, final long now) {
+        if (item.getExpiresOn() == null || item.getExpiresOn().getTime() > now) {
+            return false;
+        }
+
+        final Date extendedExpiresOn = item.getExtendedExpiresOn();
+        return extendedExpiresOn == null || extendedExpiresOn.getTime() <= now;
+    }
+
+    /**
+     * @return true if the key belongs to an aliased authority and the same key exists under the
+     * preferred cache authority, which is looked up first.
+     */
+    private static boolean isAliasDuplicate(@NonNull final String key, @NonNull final Map<String, String> persistedValues) {
+        final int authorityEnd = key.indexOf(CACHE_KEY_DELIMITER);
+        if (authorityEnd < 0) {
+            return false;
+        }
+
+        final URL authorityUrl;
+        try {
+            authorityUrl = new URL(key.substring(0, authorityEnd));
+        } catch (final MalformedURLException e) {
+            return false;
+        }
+
+        final InstanceDiscoveryMetadata metadata = AuthorityValidationMetadataCache.getCachedInstanceDiscoveryMetadata(authorityUrl);
+        if (metadata == null || !metadata.isValidated() || StringExtensions.isNullOrBlank(metadata.getPreferredCache())
+                || metadata.getPreferredCache().equalsIgnoreCase(authorityUrl.getHost())) {
+            return false;
+        }
+
+        String preferredAuthority;
+        try {
+            preferredAuthority = Discovery.constructAuthorityUrl(authorityUrl, metadata.getPreferredCache())
+                    .toString().toLowerCase(Locale.US);
+        } catch (final MalformedURLException e) {
+            return false;
+        }
+
+        if (preferredAuthority.endsWith("/")) {
+            preferredAuthority = preferredAuthority.substring(0, preferredAuthority.length() - 1);
+        }
+
+        return persistedValues.containsKey(preferredAuthority + key.substring(authorityEnd));
+    }
+
+    /**
+     * @return The authority, client id and user id of the key, or null if it's not a {@link CacheKey}.
+     */
+    private static String getUserClientGroup(@NonNull final String key) {
+        final String[] components = key.split("\\" + CACHE_KEY_DELIMITER, -1);
+        if (components.length != CACHE_KEY_COMPONENT_COUNT) {
+            return null;
+        }
+
+        return components[0] + CACHE_KEY_DELIMITER + components[2] + CACHE_KEY_DELIMITER + components[4];
+    }
+
+    private static final class RefreshTokenState {
+        private final String mGroup;
+        private final Date mUpdateTime;
+        private final String mRefreshToken;
+
+        RefreshTokenState(@NonNull final String group, @NonNull final TokenCacheItem item) {
+            mGroup = group;
+            mUpdateTime = item.getTokenUpdateTime();
+            mRefreshToken = item.getRefreshToken();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.aad.adal;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.os.FileObserver;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+
+/**
+ * Watches the preferences files of the token cache for writes made by other processes, such as
+ * sibling apps sharing the cache through {@link AuthenticationSettings#setSharedPrefPackageName(String)}.
+ * {@link SharedPreferences} loads a file once per process, so on such a write the file is reloaded
+ * before the {@link Listener} is told about it. Writes made by this process don't cause a reload.
+ * <p>
+ * The observer stops once it is garbage collected, its owner has to keep it reachable.
+ */
+final class TokenCacheFileObserver extends FileObserver {
+
+    private static final String TAG = TokenCacheFileObserver.class.getSimpleName();
+
+    private static final String SHARED_PREFERENCES_DIRECTORY = "shared_prefs";
+
+    private static final String XML_SUFFIX = ".xml";
+
+    private static final int EVENTS = CLOSE_WRITE | MOVED_TO | DELETE;
+
+    /**
+     * Notified after a token cache file changed.
+     */
+    interface Listener {
+        /**
+         * @param sharedPreferences The reloaded file.
+         */
+        void onFileChanged(@NonNull SharedPreferences sharedPreferences);
+    }
+
+    private final Context mContext;
+
+    private final String mFileNamePrefix;
+
+    private final Listener mListener;
+
+    private TokenCacheFileObserver(@NonNull final String directory,
+                                   @NonNull final Context context,
+                                   @NonNull final String fileNamePrefix,
+                                   @NonNull final Listener listener) {
+        super(directory, EVENTS);
+        mContext = context;
+        mFileNamePrefix = fileNamePrefix;
+        mListener = listener;
+    }
+
+    /**
+     * Start watching the preferences files whose name starts with the given prefix.
+     *
+     * @param context        {@link Context} owning the preferences files, kept as long as the observer.
+     *                       It must be the application context or a package context, not an Activity.
+     * @param fileNamePrefix Name of the preferences file, shards included.
+     * @param listener       {@link Listener} to notify.
+     * @return The started observer, or null if the location of the files is unknown.
+     */
+    @Nullable
+    static TokenCacheFileObserver startWatching(@NonNull final Context context,
+                                                @NonNull final String fileNamePrefix,
+                                                @NonNull final Listener listener) {
+        final ApplicationInfo applicationInfo = context.getApplicationInfo();
+        if (applicationInfo == null || applicationInfo.dataDir == null) {
+            Logger.w(TAG, "Data directory is unknown, token cache changes of other processes are not observed.");
+            return null;
+        }
+
+        // The directory only exists once a preferences file was written, and a directory missing
+        // when the observer starts is never watched.
+        final File directory = new File(applicationInfo.dataDir, SHARED_PREFERENCES_DIRECTORY);
+        if (!directory.mkdirs() && !directory.isDirectory()) {
+            Logger.w(TAG, "Failed to create the preferences directory, token cache changes of other processes are not observed.");
+            return null;
+        }
+
+        final TokenCacheFileObserver observer = new TokenCacheFileObserver(directory.getPath(), context,
+                fileNamePrefix, listener);
+        observer.startWatching();
+        return observer;
+    }
+
+    @Override
+    public void onEvent(final int event, @Nullable final String path) {
+        if (path == null || !path.startsWith(mFileNamePrefix) || !path.endsWith(XML_SUFFIX)) {
+            return;
+        }
+
+        // MODE_MULTI_PROCESS reloads the file if it was not written by this process
+        @SuppressWarnings("deprecation")
+        final SharedPreferences sharedPreferences = mContext.getSharedPreferences(
+                path.substring(0, path.length() - XML_SUFFIX.length()), Context.MODE_MULTI_PROCESS);
+        mListener.onFileChanged(sharedPreferences);
+    }
+}
@@ -0,0 +1,463 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.aad.adal;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.microsoft.identity.common.adal.internal.util.StringExtensions;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * In-memory secondary indexes over the keys of the encrypted {@link DefaultTokenCacheStore} file.
+ * Only the cache key, the encrypted blob it was built from and a few plain attributes of the
+ * item are kept, never the tokens. The index is built lazily by the first query in the process
+ * and then maintained by the store on every write, so queries don't read the file.
+ * <p>
+ * Writes done to the file by other components, in this process or another one, are observed
+ * through {@link SharedPreferences} change notifications and {@link TokenCacheFileObserver}. They
+ * mark the index stale and the next query reconciles it through {@link #sync(Map, ItemLoader, int)},
+ * which only decrypts entries whose blob changed.
+ */
+final class TokenCacheIndex implements SharedPreferences.OnSharedPreferenceChangeListener,
+        TokenCacheFileObserver.Listener {
+
+    private static final String TAG = TokenCacheIndex.class.getSimpleName();
+
+    /**
+     * One index per backing preferences file, shared by every {@link DefaultTokenCacheStore}
+     * instance in the process. It also keeps the change listeners strongly reachable since
+     * {@link SharedPreferences} only holds weak references to them.
+     */
+    private static final Map<String, TokenCacheIndex> INDEXES = new HashMap<>();
+
+    private final Map<String, IndexEntry> mEntries = new HashMap<>();
+
+    private final Map<String, Set<String>> mKeysByUserId = new HashMap<>();
+
+    private final Map<String, Set<String>> mKeysByResource = new HashMap<>();
+
+    private final TreeMap<Long, Set<String>> mKeysByExpiresOn = new TreeMap<>();
+
+    /**
+     * Number of regular (non multi-resource) refresh token entries per authority, client id and resource.
+     */
+    private final Map<String, Integer> mRegularTokenCounts = new HashMap<>();
+
+    /**
+     * Number of multi-resource refresh token entries per authority and client id.
+     */
+    private final Map<String, Integer> mMultiResourceTokenCounts = new HashMap<>();
+
+    private boolean mIsBuilt = false;
+
+    /**
+     * Incremented whenever the file changed outside of the store.
+     */
+    private int mChangeCount = 0;
+
+    /**
+     * Value of {@link #mChangeCount} the last {@link #sync(Map, ItemLoader, int)} started from.
+     */
+    private int mSyncedChangeCount = 0;
+
+    private SharedPreferences mSharedPreferences;
+
+    /**
+     * Kept to stay reachable, the observer stops once it is garbage collected.
+     */
+    private TokenCacheFileObserver mFileObserver;
+
+    /**
+     * Loads and decrypts the item persisted for a key.
+     */
+    interface ItemLoader {
+        /**
+         * @param key            Cache key.
+         * @param encryptedValue Encrypted blob persisted for the key.
+         * @return Decrypted item, or null if it cannot be read.
+         */
+        @Nullable
+        TokenCacheItem load(@NonNull String key, @NonNull String encryptedValue);
+    }
+
+    /**
+     * Get the index for the given preferences file, creating and registering it on first use.
+     *
+     * @param fileIdentifier    Identifies the backing file, such as the owning package name.
+     * @param context           {@link Context} owning the backing file.
+     * @param fileName          Name of the backing file, also the prefix of its shards.
+     * @param sharedPreferences The {@link SharedPreferences} backing the file.
+     * @return {@link TokenCacheIndex} shared by the stores using that file.
+     */
+    static TokenCacheIndex getInstance(@Nullable final String fileIdentifier,
+                                       @NonNull final Context context,
+                                       @NonNull final String fileName,
+                                       @NonNull final SharedPreferences sharedPreferences) {
+        synchronized (INDEXES) {
+            TokenCacheIndex index = INDEXES.get(fileIdentifier);
+            if (index == null) {
+                index = new TokenCacheIndex();
+                index.mFileObserver = TokenCacheFileObserver.startWatching(context, fileName, index);
+                INDEXES.put(fileIdentifier, index);
+            }
+
+            index.watch(sharedPreferences);
+            return index;
+        }
+    }
+
+    /**
+     * Listen to the given {@link SharedPreferences}. A store handing out another instance than the
+     * one the index was built from may see other content, so the index is reconciled once.
+     */
+    private synchronized void watch(@NonNull final SharedPreferences sharedPreferences) {
+        if (mSharedPreferences != sharedPreferences) {
+            sharedPreferences.registerOnSharedPreferenceChangeListener(this);
+            mSharedPreferences = sharedPreferences;
+            markStale();
+        }
+    }
+
+    /**
+     * Record that the file was changed outside of the store, the next query reconciles the index.
+     */
+    synchronized void markStale() {
+        mChangeCount++;
+    }
+
+    /**
+     * @return True if the index is built and nothing changed the file outside of the store since
+     * the last {@link #sync(Map, ItemLoader, int)}.
+     */
+    synchronized boolean isSynced() {
+        return mIsBuilt && mSyncedChangeCount == mChangeCount;
+    }
+
+    /**
+     * @return The change count to pass to {@link #sync(Map, ItemLoader, int)}, read before the
+     * persisted entries so that a change made while they are read leaves the index stale.
+     */
+    synchronized int getChangeCount() {
+        return mChangeCount;
+    }
+
+    /**
+     * Bring the index in line with the persisted entries. The first call indexes every entry,
+     * later calls only load the entries whose blob is new or was replaced.
+     *
+     * @param persisted   All the key/blob pairs currently persisted.
+     * @param loader      {@link ItemLoader} used for new or changed entries.
+     * @param changeCount {@link #getChangeCount()} read before the persisted entries.
+     */
+    synchronized void sync(@NonNull final Map<String, String> persisted, @NonNull final ItemLoader loader,
+                           final int changeCount) {
+        if (!mIsBuilt) {
+            Logger.v(TAG, "Building token cache index.");
+        }
+
+        final Iterator<Map.Entry<String, IndexEntry>> indexed = mEntries.entrySet().iterator();
+        while (indexed.hasNext()) {
+            final Map.Entry<String, IndexEntry> entry = indexed.next();
+            if (!persisted.containsKey(entry.getKey())) {
+                indexed.remove();
+                unindexAttributes(entry.getKey(), entry.getValue());
+            }
+        }
+
+        for (final Map.Entry<String, String> entry : persisted.entrySet()) {
+            final String key = entry.getKey();
+            final String encryptedValue = entry.getValue();
+            final IndexEntry indexEntry = mEntries.get(key);
+            if (encryptedValue == null || indexEntry != null && indexEntry.matches(encryptedValue)) {
+                continue;
+            }
+
+            final TokenCacheItem item = loader.load(key, encryptedValue);
+            if (item != null) {
+                put(key, encryptedValue, item);
+            } else {
+                remove(key);
+            }
+        }
+
+        mIsBuilt = true;
+        mSyncedChangeCount = changeCount;
+    }
+
+    /**
+     * Writes made through {@link DefaultTokenCacheStore} are notified too, after the store updated
+     * the index, and are told apart by their blob.
+     */
+    @Override
+    public synchronized void onSharedPreferenceChanged(final SharedPreferences sharedPreferences, final String key) {
+        if (key == null) {
+            // Sent when the file is cleared.
+            markStale();
+            return;
+        }
+
+        final IndexEntry entry = mEntries.get(key);
+        final String encryptedValue = sharedPreferences.getString(key, null);
+        if (entry == null ? encryptedValue != null : !entry.matches(encryptedValue)) {
+            markStale();
+        }
+    }
+
+    /**
+     * The reloaded file may be one of several shards, so entries missing from it can't be told
+     * apart from entries removed by the other process.
+     */
+    @Override
+    public void onFileChanged(@NonNull final SharedPreferences sharedPreferences) {
+        Logger.v(TAG, "Token cache file changed, the index is reconciled on the next query.");
+        markStale();
+    }
+
+    /**
+     * Index an item that has just been persisted. Ignored until the index is built, since
+     * building reads every persisted entry anyway.
+     */
+    synchronized void onItemSet(@NonNull final String key, @NonNull final String encryptedValue,
+                                @NonNull final TokenCacheItem item) {
+        if (mIsBuilt) {
+            put(key, encryptedValue, item);
+        }
+    }
+
+    synchronized void onItemRemoved(@NonNull final String key) {
+        remove(key);
+    }
+
+    synchronized void onAllItemsRemoved() {
+        mEntries.clear();
+        mKeysByUserId.clear();
+        mKeysByResource.clear();
+        mKeysByExpiresOn.clear();
+        mRegularTokenCounts.clear();
+        mMultiResourceTokenCounts.clear();
+    }
+
+    /**
+     * @return Keys of the items whose user id matches ignoring case.
+     */
+    synchronized Set<String> getKeysForUser(@Nullable final String userId) {
+        return copyOf(mKeysByUserId.get(toLowerCase(userId)));
+    }
+
+    /**
+     * @return Keys of the items for the exact resource.
+     */
+    synchronized Set<String> getKeysForResource(@Nullable final String resource) {
+        return copyOf(mKeysByResource.get(resource));
+    }
+
+    /**
+     * @return Keys of the items expiring strictly before the given time.
+     */
+    synchronized Set<String> getKeysExpiringBefore(final long timeInMillis) {
+        final Set<String> keys = new HashSet<>();
+        for (final Set<String> keysForTime : mKeysByExpiresOn.headMap(timeInMillis, false).values()) {
+            keys.addAll(keysForTime);
+        }
+
+        return keys;
+    }
+
+    /**
+     * @return Number of regular, non multi-resource, entries matching the authority, client id
+     * and resource ignoring case.
+     */
+    synchronized int getRegularTokenCount(@NonNull final String authority, @NonNull final String clientId,
+                                          @NonNull final String resource) {
+        return getCount(mRegularTokenCounts, regularTokenCountKey(authority, clientId, resource));
+    }
+
+    /**
+     * @return Number of multi-resource entries, flagged as such or stored without resource,
+     * matching the authority and client id ignoring case.
+     */
+    synchronized int getMultiResourceTokenCount(@NonNull final String authority, @NonNull final String clientId) {
+        return getCount(mMultiResourceTokenCounts, multiResourceTokenCountKey(authority, clientId));
+    }
+
+    /**
+     * @return The distinct user ids of the items carrying {@link UserInfo}.
+     */
+    synchronized Set<String> getUniqueUserIds() {
+        final Set<String> users = new HashSet<>();
+        for (final IndexEntry entry : mEntries.values()) {
+            if (entry.mHasUserInfo) {
+                users.add(entry.mUserId);
+            }
+        }
+
+        return users;
+    }
+
+    private void put(final String key, final String encryptedValue, final TokenCacheItem item) {
+        remove(key);
+
+        final IndexEntry entry = new IndexEntry(encryptedValue, item);
+        mEntries.put(key, entry);
+        addKey(mKeysByUserId, toLowerCase(entry.mUserId), key);
+        addKey(mKeysByResource, entry.mResource, key);
+        if (entry.mExpiresOn != null) {
+            addKey(mKeysByExpiresOn, entry.mExpiresOn, key);
+        }
+
+        updateCounts(entry, 1);
+    }
+
+    private void remove(final String key) {
+        final IndexEntry entry = mEntries.remove(key);
+        if (entry != null) {
+            unindexAttributes(key, entry);
+        }
+    }
+
+    private void unindexAttributes(final String key, final IndexEntry entry) {
+        removeKey(mKeysByUserId, toLowerCase(entry.mUserId), key);
+        removeKey(mKeysByResource, entry.mResource, key);
+        if (entry.mExpiresOn != null) {
+            removeKey(mKeysByExpiresOn, entry.mExpiresOn, key);
+        }
+
+        updateCounts(entry, -1);
+    }
+
+    private void updateCounts(final IndexEntry entry, final int delta) {
+        if (entry.mAuthority == null || entry.mClientId == null) {
+            return;
+        }
+
+        if (entry.mResource != null && !entry.mIsMultiResourceRefreshToken) {
+            addCount(mRegularTokenCounts, regularTokenCountKey(entry.mAuthority, entry.mClientId, entry.mResource), delta);
+        }
+
+        if (entry.mIsMultiResourceRefreshToken || StringExtensions.isNullOrBlank(entry.mResource)) {
+            addCount(mMultiResourceTokenCounts, multiResourceTokenCountKey(entry.mAuthority, entry.mClientId), delta);
+        }
+    }
+
+    private static String regularTokenCountKey(final String authority, final String clientId, final String resource) {
+        return toLowerCase(authority) + "$" + toLowerCase(clientId) + "$" + toLowerCase(resource);
+    }
+
+    private static String multiResourceTokenCountKey(final String authority, final String clientId) {
+        return toLowerCase(authority) + "$" + toLowerCase(clientId);
+    }
+
+    private static void addCount(final Map<String, Integer> counts, final String countKey, final int delta) {
+        final int count = getCount(counts, countKey) + delta;
+        if (count > 0) {
+            counts.put(countKey, count);
+        } else {
+            counts.remove(countKey);
+        }
+    }
+
+    private static int getCount(final Map<String, Integer> counts, final String countKey) {
+        final Integer count = counts.get(countKey);
+        return count == null ? 0 : count;
+    }
+
+    private static <T> void addKey(final Map<T, Set<String>> index, final T attribute, final String key) {
+        if (attribute == null) {
+            return;
+        }
+
+        Set<String> keys = index.get(attribute);
+        if (keys == null) {
+            keys = new HashSet<>();
+            index.put(attribute, keys);
+        }
+
+        keys.add(key);
+    }
+
+    private static <T> void removeKey(final Map<T, Set<String>> index, final T attribute, final String key) {
+        if (attribute == null) {
+            return;
+        }
+
+        final Set<String> keys = index.get(attribute);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                index.remove(attribute);
+            }
+        }
+    }
+
+    private static Set<String> copyOf(@Nullable final Collection<String> keys) {
+        return keys == null ? new HashSet<String>() : new HashSet<>(keys);
+    }
+
+    private static String toLowerCase(@Nullable final String value) {
+        return value == null ? null : value.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Plain attributes of a persisted item, together with the blob they were read from.
+     */
+    private static final class IndexEntry {
+        private final String mEncryptedValue;
+        private final boolean mHasUserInfo;
+        private final String mUserId;
+        private final String mResource;
+        private final String mClientId;
+        private final String mAuthority;
+        private final Long mExpiresOn;
+        private final boolean mIsMultiResourceRefreshToken;
+
+        IndexEntry(final String encryptedValue, final TokenCacheItem item) {
+            mEncryptedValue = encryptedValue;
+            mHasUserInfo = item.getUserInfo() != null;
+            mUserId = mHasUserInfo ? item.getUserInfo().getUserId() : null;
+            mResource = item.getResource();
+            mClientId = item.getClientId();
+            mAuthority = item.getAuthority();
+            mExpiresOn = item.getExpiresOn() == null ? null : item.getExpiresOn().getTime();
+            mIsMultiResourceRefreshToken = item.getIsMultiResourceRefreshToken();
+        }
+
+        boolean matches(final String encryptedValue) {
+            // Reference check first, the preferences hand out the same instance until it is rewritten.
+            return mEncryptedValue == encryptedValue //NOPMD
+                    || mEncryptedValue.equals(encryptedValue);
+        }
+    }
+}
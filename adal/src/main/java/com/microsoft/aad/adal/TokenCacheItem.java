@@ -95,6 +95,7 @@ public class TokenCacheItem implements Serializable {
         mFamilyClientId = tokenCacheItem.getFamilyClientId();
         mExtendedExpiresOn = tokenCacheItem.getExtendedExpiresOn();
         mSpeRing = tokenCacheItem.getSpeRing();
+        setTokenUpdateTime(tokenCacheItem.getTokenUpdateTime());
     }
 
     /**
@@ -0,0 +1,384 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.aad.adal;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compact binary encoding of {@link TokenCacheItem}, used by {@link DefaultTokenCacheStore} in
+ * place of JSON. An encoded item is {@link #PREFIX}, which JSON never starts with, the version of
+ * the encoding, a bit set of the fields present and then those fields: strings as a length-prefixed
+ * UTF-8 byte array and dates as epoch milliseconds.
+ * <p>
+ * The bytes are encrypted as they are by {@link StorageHelper#encryptBytes(byte[])}. Version 1
+ * carried them as a string of one ISO-8859-1 character per byte, which the string encryption
+ * stored as UTF-8, two bytes for every byte from 0x80 up. It is still read, and still written
+ * by stores whose {@code getStorageHelper()} is overridden since such a helper only encrypts
+ * strings. Those stores can't read version 2 items.
+ */
+final class TokenCacheItemCodec {
+
+    static final byte PREFIX = 1;
+
+    /**
+     * Bytes carried as an ISO-8859-1 string.
+     */
+    private static final int STRING_VERSION = 1;
+
+    /**
+     * Bytes encrypted as they are.
+     */
+    private static final int VERSION = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final int USER_INFO = 1;
+    private static final int RESOURCE = 1 << 1;
+    private static final int AUTHORITY = 1 << 2;
+    private static final int CLIENT_ID = 1 << 3;
+    private static final int ACCESS_TOKEN = 1 << 4;
+    private static final int REFRESH_TOKEN = 1 << 5;
+    private static final int RAW_ID_TOKEN = 1 << 6;
+    private static final int EXPIRES_ON = 1 << 7;
+    private static final int MULTI_RESOURCE_REFRESH_TOKEN = 1 << 8;
+    private static final int TENANT_ID = 1 << 9;
+    private static final int FAMILY_CLIENT_ID = 1 << 10;
+    private static final int TOKEN_UPDATED_TIME = 1 << 11;
+    private static final int EXTENDED_EXPIRES_ON = 1 << 12;
+    private static final int SPE_RING = 1 << 13;
+
+    private static final int USER_ID = 1;
+    private static final int DISPLAYABLE_ID = 1 << 1;
+    private static final int GIVEN_NAME = 1 << 2;
+    private static final int FAMILY_NAME = 1 << 3;
+    private static final int IDENTITY_PROVIDER = 1 << 4;
+
+    /**
+     * Upper bound for a single string, anything bigger is treated as corruption.
+     */
+    private static final int MAX_STRING_LENGTH = 1024 * 1024;
+
+    /**
+     * Authorities, client ids and resources decoded so far. Every item of an application
+     * repeats a handful of them, so decoded items share one instance of each.
+     */
+    private static final ConcurrentMap<String, String> INTERNED_STRINGS = new ConcurrentHashMap<>();
+
+    private static final int MAX_INTERNED_STRINGS = 256;
+
+    private TokenCacheItemCodec() {
+        // Utility class.
+    }
+
+    /**
+     * @return true if the decrypted bytes were produced by {@link #encode(TokenCacheItem)} or
+     * {@link #encodeAsString(TokenCacheItem)}.
+     */
+    static boolean isEncoded(@NonNull final byte[] value) {
+        return value.length > 0 && value[0] == PREFIX;
+    }
+
+    /**
+     * @return true if the decrypted string was produced by {@link #encodeAsString(TokenCacheItem)}.
+     */
+    static boolean isEncoded(@NonNull final String value) {
+        return !value.isEmpty() && value.charAt(0) == PREFIX;
+    }
+
+    /**
+     * @return The item encoded for {@link StorageHelper#encryptBytes(byte[])}.
+     */
+    static byte[] encode(@NonNull final TokenCacheItem item) {
+        return encode(item, VERSION);
+    }
+
+    /**
+     * @return The item encoded for a helper that only encrypts strings.
+     */
+    static String encodeAsString(@NonNull final TokenCacheItem item) {
+        return new String(encode(item, STRING_VERSION), ISO_8859_1);
+    }
+
+    private static byte[] encode(final TokenCacheItem item, final int version) {
+        final UserInfo userInfo = item.getUserInfo();
+        int fields = 0;
+        fields |= userInfo != null ? USER_INFO : 0;
+        fields |= item.getResource() != null ? RESOURCE : 0;
+        fields |= item.getAuthority() != null ? AUTHORITY : 0;
+        fields |= item.getClientId() != null ? CLIENT_ID : 0;
+        fields |= item.getAccessToken() != null ? ACCESS_TOKEN : 0;
+        fields |= item.getRefreshToken() != null ? REFRESH_TOKEN : 0;
+        fields |= item.getRawIdToken() != null ? RAW_ID_TOKEN : 0;
+        fields |= item.getExpiresOn() != null ? EXPIRES_ON : 0;
+        fields |= item.getIsMultiResourceRefreshToken() ? MULTI_RESOURCE_REFRESH_TOKEN : 0;
+        fields |= item.getTenantId() != null ? TENANT_ID : 0;
+        fields |= item.getFamilyClientId() != null ? FAMILY_CLIENT_ID : 0;
+        fields |= item.getTokenUpdateTime() != null ? TOKEN_UPDATED_TIME : 0;
+        fields |= item.getExtendedExpiresOn() != null ? EXTENDED_EXPIRES_ON : 0;
+        fields |= item.getSpeRing() != null ? SPE_RING : 0;
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream outputStream = new DataOutputStream(bytes);
+        try {
+            outputStream.writeByte(PREFIX);
+            outputStream.writeByte(version);
+            writeVarInt(outputStream, fields);
+            if (userInfo != null) {
+                writeUserInfo(outputStream, userInfo);
+            }
+
+            writeString(outputStream, item.getResource());
+            writeString(outputStream, item.getAuthority());
+            writeString(outputStream, item.getClientId());
+            writeString(outputStream, item.getAccessToken());
+            writeString(outputStream, item.getRefreshToken());
+            writeString(outputStream, item.getRawIdToken());
+            writeDate(outputStream, item.getExpiresOn());
+            writeString(outputStream, item.getTenantId());
+            writeString(outputStream, item.getFamilyClientId());
+            writeDate(outputStream, item.getTokenUpdateTime());
+            writeDate(outputStream, item.getExtendedExpiresOn());
+            writeString(outputStream, item.getSpeRing());
+            outputStream.flush();
+        } catch (final IOException exception) {
+            // ByteArrayOutputStream does not throw.
+            throw new IllegalStateException(exception);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param value Decrypted bytes produced by {@link #encode(TokenCacheItem)} or
+     *              {@link #encodeAsString(TokenCacheItem)}.
+     * @throws IOException if the value is truncated or of an unknown version.
+     */
+    static TokenCacheItem decode(@NonNull final byte[] value) throws IOException {
+        if (!isEncoded(value) || value.length < 2) {
+            throw new IOException("Not an encoded token cache item.");
+        }
+
+        if (value[1] == STRING_VERSION) {
+            return decode(new String(value, UTF_8));
+        }
+
+        return read(value, VERSION);
+    }
+
+    /**
+     * @param value Decrypted string produced by {@link #encodeAsString(TokenCacheItem)}.
+     * @throws IOException if the value is truncated or of an unknown version.
+     */
+    static TokenCacheItem decode(@NonNull final String value) throws IOException {
+        if (!isEncoded(value)) {
+            throw new IOException("Not an encoded token cache item.");
+        }
+
+        return read(value.getBytes(ISO_8859_1), STRING_VERSION);
+    }
+
+    private static TokenCacheItem read(final byte[] bytes, final int expectedVersion) throws IOException {
+        final DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+        final int version = inputStream.readUnsignedByte();
+        if (version != expectedVersion) {
+            throw new IOException("Unknown token cache item version " + version);
+        }
+
+        final int fields = readVarInt(inputStream);
+        final TokenCacheItem item = new TokenCacheItem();
+        if ((fields & USER_INFO) != 0) {
+            item.setUserInfo(readUserInfo(inputStream));
+        }
+
+        if ((fields & RESOURCE) != 0) {
+            item.setResource(intern(readString(inputStream)));
+        }
+
+        if ((fields & AUTHORITY) != 0) {
+            item.setAuthority(intern(readString(inputStream)));
+        }
+
+        if ((fields & CLIENT_ID) != 0) {
+            item.setClientId(intern(readString(inputStream)));
+        }
+
+        if ((fields & ACCESS_TOKEN) != 0) {
+            item.setAccessToken(readString(inputStream));
+        }
+
+        if ((fields & REFRESH_TOKEN) != 0) {
+            item.setRefreshToken(readString(inputStream));
+        }
+
+        if ((fields & RAW_ID_TOKEN) != 0) {
+            item.setRawIdToken(readString(inputStream));
+        }
+
+        if ((fields & EXPIRES_ON) != 0) {
+            item.setExpiresOn(new Date(inputStream.readLong()));
+        }
+
+        item.setIsMultiResourceRefreshToken((fields & MULTI_RESOURCE_REFRESH_TOKEN) != 0);
+        if ((fields & TENANT_ID) != 0) {
+            item.setTenantId(intern(readString(inputStream)));
+        }
+
+        if ((fields & FAMILY_CLIENT_ID) != 0) {
+            item.setFamilyClientId(intern(readString(inputStream)));
+        }
+
+        if ((fields & TOKEN_UPDATED_TIME) != 0) {
+            item.setTokenUpdateTime(new Date(inputStream.readLong()));
+        }
+
+        if ((fields & EXTENDED_EXPIRES_ON) != 0) {
+            item.setExtendedExpiresOn(new Date(inputStream.readLong()));
+        }
+
+        if ((fields & SPE_RING) != 0) {
+            item.setSpeRing(readString(inputStream));
+        }
+
+        return item;
+    }
+
+    private static void writeUserInfo(final DataOutputStream outputStream, final UserInfo userInfo)
+            throws IOException {
+        int fields = 0;
+        fields |= userInfo.getUserId() != null ? USER_ID : 0;
+        fields |= userInfo.getDisplayableId() != null ? DISPLAYABLE_ID : 0;
+        fields |= userInfo.getGivenName() != null ? GIVEN_NAME : 0;
+        fields |= userInfo.getFamilyName() != null ? FAMILY_NAME : 0;
+        fields |= userInfo.getIdentityProvider() != null ? IDENTITY_PROVIDER : 0;
+
+        writeVarInt(outputStream, fields);
+        writeString(outputStream, userInfo.getUserId());
+        writeString(outputStream, userInfo.getDisplayableId());
+        writeString(outputStream, userInfo.getGivenName());
+        writeString(outputStream, userInfo.getFamilyName());
+        writeString(outputStream, userInfo.getIdentityProvider());
+    }
+
+    private static UserInfo readUserInfo(final DataInputStream inputStream) throws IOException {
+        final int fields = readVarInt(inputStream);
+        final UserInfo userInfo = new UserInfo();
+        if ((fields & USER_ID) != 0) {
+            userInfo.setUserId(readString(inputStream));
+        }
+
+        if ((fields & DISPLAYABLE_ID) != 0) {
+            userInfo.setDisplayableId(readString(inputStream));
+        }
+
+        if ((fields & GIVEN_NAME) != 0) {
+            userInfo.setGivenName(readString(inputStream));
+        }
+
+        if ((fields & FAMILY_NAME) != 0) {
+            userInfo.setFamilyName(readString(inputStream));
+        }
+
+        if ((fields & IDENTITY_PROVIDER) != 0) {
+            userInfo.setIdentityProvider(intern(readString(inputStream)));
+        }
+
+        return userInfo;
+    }
+
+    /**
+     * Writes nothing for null values, their absence is recorded in the field bit set.
+     */
+    private static void writeString(final DataOutputStream outputStream, final String value) throws IOException {
+        if (value != null) {
+            final byte[] bytes = value.getBytes(UTF_8);
+            writeVarInt(outputStream, bytes.length);
+            outputStream.write(bytes);
+        }
+    }
+
+    private static String readString(final DataInputStream inputStream) throws IOException {
+        final int length = readVarInt(inputStream);
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new IOException("Invalid string length.");
+        }
+
+        final byte[] bytes = new byte[length];
+        inputStream.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeDate(final DataOutputStream outputStream, final Date value) throws IOException {
+        if (value != null) {
+            outputStream.writeLong(value.getTime());
+        }
+    }
+
+    private static void writeVarInt(final DataOutputStream outputStream, final int value) throws IOException {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            outputStream.writeByte((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+
+        outputStream.writeByte(remaining);
+    }
+
+    private static int readVarInt(final DataInputStream inputStream) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+            final int b = inputStream.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Invalid variable length integer.");
+    }
+
+    private static String intern(final String value) {
+        final String interned = INTERNED_STRINGS.get(value);
+        if (interned != null) {
+            return interned;
+        }
+
+        if (INTERNED_STRINGS.size() < MAX_INTERNED_STRINGS) {
+            final String previous = INTERNED_STRINGS.putIfAbsent(value, value);
+            return previous == null ? value : previous;
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,269 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.aad.adal;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Streaming adapters for {@link TokenCacheItem} and {@link UserInfo}, registered in place of
+ * Gson's reflective adapters. The JSON is the same as the reflective one: fields keep their
+ * names, null fields are omitted, and dates go through the {@link Date} adapter of the
+ * {@link Gson} instance the factory is registered on.
+ * <p>
+ * Fields are written in dex order (sorted by name), which is the order reflection reports them
+ * on Android.
+ */
+final class TokenCacheItemTypeAdapterFactory implements TypeAdapterFactory {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(final Gson gson, final TypeToken<T> type) {
+        // Subclasses fall back to reflection so their own fields are kept
+        if (type.getRawType() == TokenCacheItem.class) {
+            return (TypeAdapter<T>) new TokenCacheItemAdapter(gson.getAdapter(Date.class),
+                    gson.getAdapter(UserInfo.class));
+        }
+
+        if (type.getRawType() == UserInfo.class) {
+            return (TypeAdapter<T>) new UserInfoAdapter();
+        }
+
+        return null;
+    }
+
+    private static final class TokenCacheItemAdapter extends TypeAdapter<TokenCacheItem> {
+
+        private final TypeAdapter<Date> mDateAdapter;
+
+        private final TypeAdapter<UserInfo> mUserInfoAdapter;
+
+        TokenCacheItemAdapter(final TypeAdapter<Date> dateAdapter, final TypeAdapter<UserInfo> userInfoAdapter) {
+            mDateAdapter = dateAdapter;
+            mUserInfoAdapter = userInfoAdapter;
+        }
+
+        @Override
+        public void write(final JsonWriter out, final TokenCacheItem item) throws IOException {
+            if (item == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            writeString(out, "mAccessToken", item.getAccessToken());
+            writeString(out, "mAuthority", item.getAuthority());
+            writeString(out, "mClientId", item.getClientId());
+            writeDate(out, "mExpiresOn", item.getExpiresOn());
+            writeDate(out, "mExtendedExpiresOn", item.getExtendedExpiresOn());
+            writeString(out, "mFamilyClientId", item.getFamilyClientId());
+            out.name("mIsMultiResourceRefreshToken").value(item.getIsMultiResourceRefreshToken());
+            writeString(out, "mRawIdToken", item.getRawIdToken());
+            writeString(out, "mRefreshtoken", item.getRefreshToken());
+            writeString(out, "mResource", item.getResource());
+            writeString(out, "mSpeRing", item.getSpeRing());
+            writeString(out, "mTenantId", item.getTenantId());
+            writeDate(out, "mTokenUpdatedTime", item.getTokenUpdateTime());
+            if (item.getUserInfo() != null) {
+                out.name("mUserInfo");
+                mUserInfoAdapter.write(out, item.getUserInfo());
+            }
+            out.endObject();
+        }
+
+        @Override
+        public TokenCacheItem read(final JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            final TokenCacheItem item = new TokenCacheItem();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "mAccessToken":
+                        item.setAccessToken(readString(in));
+                        break;
+                    case "mAuthority":
+                        item.setAuthority(readString(in));
+                        break;
+                    case "mClientId":
+                        item.setClientId(readString(in));
+                        break;
+                    case "mExpiresOn":
+                        item.setExpiresOn(mDateAdapter.read(in));
+                        break;
+                    case "mExtendedExpiresOn":
+                        item.setExtendedExpiresOn(mDateAdapter.read(in));
+                        break;
+                    case "mFamilyClientId":
+                        item.setFamilyClientId(readString(in));
+                        break;
+                    case "mIsMultiResourceRefreshToken":
+                        final Boolean isMultiResourceRefreshToken = readBoolean(in);
+                        if (isMultiResourceRefreshToken != null) {
+                            item.setIsMultiResourceRefreshToken(isMultiResourceRefreshToken);
+                        }
+                        break;
+                    case "mRawIdToken":
+                        item.setRawIdToken(readString(in));
+                        break;
+                    case "mRefreshtoken":
+                        item.setRefreshToken(readString(in));
+                        break;
+                    case "mResource":
+                        item.setResource(readString(in));
+                        break;
+                    case "mSpeRing":
+                        item.setSpeRing(readString(in));
+                        break;
+                    case "mTenantId":
+                        item.setTenantId(readString(in));
+                        break;
+                    case "mTokenUpdatedTime":
+                        item.setTokenUpdateTime(mDateAdapter.read(in));
+                        break;
+                    case "mUserInfo":
+                        item.setUserInfo(mUserInfoAdapter.read(in));
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return item;
+        }
+
+        private void writeDate(final JsonWriter out, final String name, final Date value) throws IOException {
+            if (value != null) {
+                out.name(name);
+                mDateAdapter.write(out, value);
+            }
+        }
+    }
+
+    private static final class UserInfoAdapter extends TypeAdapter<UserInfo> {
+
+        @Override
+        public void write(final JsonWriter out, final UserInfo userInfo) throws IOException {
+            if (userInfo == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            writeString(out, "mDisplayableId", userInfo.getDisplayableId());
+            writeString(out, "mFamilyName", userInfo.getFamilyName());
+            writeString(out, "mGivenName", userInfo.getGivenName());
+            writeString(out, "mIdentityProvider", userInfo.getIdentityProvider());
+            writeString(out, "mUniqueId", userInfo.getUserId());
+            out.endObject();
+        }
+
+        @Override
+        public UserInfo read(final JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            final UserInfo userInfo = new UserInfo();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "mDisplayableId":
+                        userInfo.setDisplayableId(readString(in));
+                        break;
+                    case "mFamilyName":
+                        userInfo.setFamilyName(readString(in));
+                        break;
+                    case "mGivenName":
+                        userInfo.setGivenName(readString(in));
+                        break;
+                    case "mIdentityProvider":
+                        userInfo.setIdentityProvider(readString(in));
+                        break;
+                    case "mUniqueId":
+                        userInfo.setUserId(readString(in));
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return userInfo;
+        }
+    }
+
+    private static void writeString(final JsonWriter out, final String name, final String value) throws IOException {
+        if (value != null) {
+            out.name(name).value(value);
+        }
+    }
+
+    /**
+     * Read a string the way Gson's built-in adapter does, accepting numbers and booleans.
+     */
+    private static String readString(final JsonReader in) throws IOException {
+        final JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        if (token == JsonToken.BOOLEAN) {
+            return Boolean.toString(in.nextBoolean());
+        }
+
+        return in.nextString();
+    }
+
+    /**
+     * Read a boolean the way Gson's built-in adapter does, accepting "true" and "false" strings.
+     */
+    private static Boolean readBoolean(final JsonReader in) throws IOException {
+        final JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        if (token == JsonToken.STRING) {
+            return Boolean.parseBoolean(in.nextString());
+        }
+
+        return in.nextBoolean();
+    }
+}
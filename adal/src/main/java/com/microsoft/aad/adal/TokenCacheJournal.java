@@ -0,0 +1,399 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.aad.adal;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonSyntaxException;
+import com.microsoft.identity.common.adal.internal.AuthenticationConstants;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamConstants;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk format of {@link FileTokenCacheStore}: an append-only journal of put and remove
+ * records. Mutations only append a record, so their cost does not depend on the cache size.
+ * {@link #compact(Map)} replaces the journal with one put record per live entry, written to a
+ * temporary file and atomically renamed over the old one, which is also how the whole cache is
+ * cleared.
+ * <p>
+ * Every record is framed as length, body and CRC32 of the body. A record cut short by a process
+ * death, and everything after it, is ignored on load.
+ * <p>
+ * Files in the legacy format, a Java serialized {@link MemoryTokenCacheStore}, are read
+ * transparently and reported through {@link #needsCompaction()} so they get rewritten.
+ * <p>
+ * The migration is one way. Library versions from before the journal only read the legacy
+ * format, and their {@link FileTokenCacheStore} constructor throws an
+ * {@link IllegalStateException} on a journal file. An app downgrading to such a version has to
+ * delete the cache file first.
+ */
+final class TokenCacheJournal {
+
+    private static final String TAG = TokenCacheJournal.class.getSimpleName();
+
+    private static final int MAGIC = 0x4144414A;
+
+    /**
+     * Version of the journal format. A file of another version loads empty and is rewritten.
+     * Library versions from before the journal can't read any version of it, see the class
+     * documentation about downgrades.
+     */
+    private static final int VERSION = 1;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Upper bound for a single record, anything bigger is treated as corruption.
+     */
+    private static final int MAX_RECORD_LENGTH = 4 * 1024 * 1024;
+
+    private static final byte OP_PUT = 1;
+
+    private static final byte OP_REMOVE = 2;
+
+    private final File mFile;
+
+    private final Gson mGson = new GsonBuilder()
+            .registerTypeAdapter(Date.class, new DateTimeAdapter())
+            .registerTypeAdapterFactory(new TokenCacheItemTypeAdapterFactory())
+            .create();
+
+    private DataOutputStream mJournalStream;
+
+    private int mRecordCount;
+
+    private boolean mNeedsCompaction;
+
+    /**
+     * @param file The journal file.
+     */
+    TokenCacheJournal(@NonNull final File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return true if the journal file exists.
+     */
+    boolean exists() {
+        return mFile.exists();
+    }
+
+    /**
+     * @return Number of records in the journal, including the ones superseded by later records.
+     */
+    int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * @return true if the file loaded was in the legacy format, of the wrong format or had a
+     * damaged tail, or if an append failed. The file should be rewritten with
+     * {@link #compact(Map)} before anything else is appended to it.
+     */
+    boolean needsCompaction() {
+        return mNeedsCompaction;
+    }
+
+    /**
+     * Replay the journal.
+     *
+     * @return The cache entries by key.
+     * @throws IOException            if the file cannot be read.
+     * @throws ClassNotFoundException if a legacy file cannot be deserialized.
+     */
+    Map<String, TokenCacheItem> load() throws IOException, ClassNotFoundException {
+        final String methodName = ":load";
+        final Map<String, TokenCacheItem> items = new HashMap<>();
+
+        if (mFile.exists()) {
+            final InputStream inputStream = new BufferedInputStream(new FileInputStream(mFile));
+            try {
+                inputStream.mark(2);
+                final int first = inputStream.read();
+                final int second = inputStream.read();
+                inputStream.reset();
+                if (((first << Byte.SIZE) | second) == (ObjectStreamConstants.STREAM_MAGIC & 0xFFFF)) {
+                    Logger.v(TAG + methodName, "Migrating cache file from the legacy format. ");
+                    readLegacyFile(inputStream, items);
+                    mNeedsCompaction = true;
+                } else {
+                    mRecordCount = readRecords(new DataInputStream(inputStream), items);
+                }
+            } finally {
+                inputStream.close();
+            }
+        }
+
+        return items;
+    }
+
+    void appendPut(@NonNull final String key, @NonNull final TokenCacheItem item) throws IOException {
+        appendRecord(OP_PUT, key, item);
+    }
+
+    void appendRemove(@NonNull final String key) throws IOException {
+        appendRecord(OP_REMOVE, key, null);
+    }
+
+    /**
+     * Push appended records to the file system.
+     */
+    void flush() throws IOException {
+        if (mJournalStream != null) {
+            try {
+                mJournalStream.flush();
+            } catch (final IOException exception) {
+                // A partially written record must not be followed by further appends.
+                mNeedsCompaction = true;
+                throw exception;
+            }
+        }
+    }
+
+    /**
+     * Replace the journal with one record per given entry.
+     *
+     * @param items Every entry of the cache.
+     */
+    void compact(@NonNull final Map<String, TokenCacheItem> items) throws IOException {
+        final String methodName = ":compact";
+        Logger.v(TAG + methodName, "Rewriting cache file with " + items.size() + " entries. ");
+        closeJournalStream();
+
+        final File tempFile = new File(mFile.getParentFile(), mFile.getName() + TEMP_SUFFIX);
+        final FileOutputStream fileStream = new FileOutputStream(tempFile);
+        try {
+            final DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(fileStream));
+            writeHeader(outputStream);
+            for (final Map.Entry<String, TokenCacheItem> entry : items.entrySet()) {
+                writeRecord(outputStream, OP_PUT, entry.getKey(), entry.getValue());
+            }
+
+            outputStream.flush();
+            fileStream.getFD().sync();
+        } finally {
+            fileStream.close();
+        }
+
+        if (!tempFile.renameTo(mFile)) {
+            throw new IOException("Failed to replace the cache file.");
+        }
+
+        mRecordCount = items.size();
+        mNeedsCompaction = false;
+    }
+
+    private DataOutputStream getJournalStream() throws IOException {
+        if (mJournalStream == null) {
+            final boolean isNew = !mFile.exists() || mFile.length() == 0;
+            mJournalStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+            if (isNew) {
+                writeHeader(mJournalStream);
+            }
+        }
+
+        return mJournalStream;
+    }
+
+    private void appendRecord(final byte op, @NonNull final String key, final TokenCacheItem item) throws IOException {
+        try {
+            writeRecord(getJournalStream(), op, key, item);
+        } catch (final IOException exception) {
+            mNeedsCompaction = true;
+            throw exception;
+        }
+
+        mRecordCount++;
+    }
+
+    private void closeJournalStream() throws IOException {
+        if (mJournalStream != null) {
+            try {
+                mJournalStream.close();
+            } finally {
+                mJournalStream = null;
+            }
+        }
+    }
+
+    private void readLegacyFile(final InputStream inputStream, final Map<String, TokenCacheItem> items)
+            throws IOException, ClassNotFoundException {
+        final ObjectInputStream objectStream = new ObjectInputStream(inputStream);
+        final Object cacheObj = objectStream.readObject();
+        if (cacheObj instanceof MemoryTokenCacheStore) {
+            items.putAll(((MemoryTokenCacheStore) cacheObj).getItemsByKey());
+        } else {
+            // Write operation will replace with correct file
+            Logger.w(TAG, "Existing cache format is wrong. ", "",
+                    ADALError.DEVICE_FILE_CACHE_FORMAT_IS_WRONG);
+        }
+    }
+
+    /**
+     * Apply the records of the journal to the given map. Reading stops at the end
+     * of the file or at the first damaged record.
+     *
+     * @return Number of records applied.
+     */
+    private int readRecords(final DataInputStream inputStream, final Map<String, TokenCacheItem> items)
+            throws IOException {
+        final String methodName = ":readRecords";
+        try {
+            if (inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION) {
+                Logger.w(TAG + methodName, "Existing cache format is wrong. ", "",
+                        ADALError.DEVICE_FILE_CACHE_FORMAT_IS_WRONG);
+                mNeedsCompaction = true;
+                return 0;
+            }
+        } catch (final EOFException exception) {
+            mNeedsCompaction = true;
+            return 0;
+        }
+
+        int count = 0;
+        while (true) {
+            final int firstByte = inputStream.read();
+            if (firstByte == -1) {
+                // Clean end of file, on a record boundary.
+                break;
+            }
+
+            try {
+                final int length = (firstByte << (Byte.SIZE * 3)) | (inputStream.readUnsignedByte() << (Byte.SIZE * 2))
+                        | (inputStream.readUnsignedByte() << Byte.SIZE) | inputStream.readUnsignedByte();
+                if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                    throw new IOException("Invalid record length.");
+                }
+
+                final byte[] body = new byte[length];
+                inputStream.readFully(body);
+                if (inputStream.readLong() != checksum(body)) {
+                    throw new IOException("Record checksum mismatch.");
+                }
+
+                applyRecord(body, items);
+            } catch (final IOException exception) {
+                // Includes the EOFException of a record cut short by a process death.
+                Logger.w(TAG + methodName, "Ignoring damaged cache records. ", exception.getMessage(),
+                        ADALError.DEVICE_FILE_CACHE_FORMAT_IS_WRONG);
+                mNeedsCompaction = true;
+                break;
+            }
+
+            count++;
+        }
+
+        return count;
+    }
+
+    private void applyRecord(final byte[] body, final Map<String, TokenCacheItem> items) throws IOException {
+        final String methodName = ":applyRecord";
+        final DataInputStream recordStream = new DataInputStream(new ByteArrayInputStream(body));
+        final byte op = recordStream.readByte();
+        switch (op) {
+            case OP_PUT:
+                final String key = readString(recordStream);
+                try {
+                    final TokenCacheItem item = mGson.fromJson(readString(recordStream), TokenCacheItem.class);
+                    if (item != null) {
+                        items.put(key, item);
+                    }
+                } catch (final JsonSyntaxException exception) {
+                    Logger.e(TAG + methodName, "Fail to parse Json. ", exception.getMessage(),
+                            ADALError.ARGUMENT_EXCEPTION, exception);
+                }
+                break;
+            case OP_REMOVE:
+                items.remove(readString(recordStream));
+                break;
+            default:
+                throw new IOException("Unknown record type.");
+        }
+    }
+
+    private void writeRecord(final DataOutputStream outputStream, final byte op, @NonNull final String key,
+                             final TokenCacheItem item) throws IOException {
+        final ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        final DataOutputStream bodyStream = new DataOutputStream(bodyBytes);
+        bodyStream.writeByte(op);
+        writeString(bodyStream, key);
+
+        if (item != null) {
+            writeString(bodyStream, mGson.toJson(item));
+        }
+
+        bodyStream.flush();
+        final byte[] body = bodyBytes.toByteArray();
+        outputStream.writeInt(body.length);
+        outputStream.write(body);
+        outputStream.writeLong(checksum(body));
+    }
+
+    private static void writeHeader(final DataOutputStream outputStream) throws IOException {
+        outputStream.writeInt(MAGIC);
+        outputStream.writeInt(VERSION);
+    }
+
+    private static void writeString(final DataOutputStream outputStream, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(AuthenticationConstants.ENCODING_UTF8);
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+
+    private static String readString(final DataInputStream inputStream) throws IOException {
+        final int length = inputStream.readInt();
+        if (length < 0 || length > MAX_RECORD_LENGTH) {
+            throw new IOException("Invalid string length.");
+        }
+
+        final byte[] bytes = new byte[length];
+        inputStream.readFully(bytes);
+        return new String(bytes, AuthenticationConstants.ENCODING_UTF8);
+    }
+
+    private static long checksum(final byte[] body) {
+        final CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,246 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.aad.adal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the work of token requests on a bounded pool of
+ * {@link AuthenticationSettings#getRequestThreadPoolSize()} threads. Tasks submitted with the
+ * same key run one after another in submission order, tasks with different keys run in
+ * parallel. A task can run on another executor and still keep its place among the tasks of its
+ * key, see {@link #execute(String, Runnable, Executor)}. The time tasks of the pool wait before
+ * running is tracked, see {@link #getQueueDepth()}, {@link #getAverageWaitTimeMillis()} and
+ * {@link #getMaxWaitTimeMillis()}.
+ */
+final class TokenRequestExecutor {
+
+    private static final String TAG = TokenRequestExecutor.class.getSimpleName();
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final TokenRequestExecutor INSTANCE = new TokenRequestExecutor();
+
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * Tasks waiting for the running task of their key to complete, by key. A key is present
+     * while one of its tasks is submitted.
+     */
+    private final Map<String, ArrayDeque<TimedTask>> mKeyQueues = new HashMap<>();
+
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+
+    private final AtomicLong mStartedTaskCount = new AtomicLong();
+
+    private final AtomicLong mTotalWaitTimeMillis = new AtomicLong();
+
+    private final AtomicLong mMaxWaitTimeMillis = new AtomicLong();
+
+    private TokenRequestExecutor() {
+        final int poolSize = AuthenticationSettings.INSTANCE.getRequestThreadPoolSize();
+        mExecutor = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    static TokenRequestExecutor getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return Key of the tasks that must not run in parallel with the request.
+     */
+    static String getKey(@NonNull final AuthenticationRequest request) {
+        final String user = request.getUserFromRequest();
+        return (request.getAuthority() + "$" + request.getClientId() + "$" + request.getResource() + "$"
+                + (user == null ? "" : user)).toLowerCase(Locale.US);
+    }
+
+    /**
+     * @return true if the store can be accessed outside of the tasks of the pool: it's one of the
+     * thread safe stores of the library, or the app made it thread safe to use more than one thread,
+     * see {@link AuthenticationSettings#setRequestThreadPoolSize(int)}.
+     */
+    static boolean isConcurrentAccessAllowed(@Nullable final ITokenCacheStore tokenCacheStore) {
+        if (AuthenticationSettings.INSTANCE.getRequestThreadPoolSize() > 1) {
+            return true;
+        }
+
+        final ITokenCacheStore store = tokenCacheStore instanceof DelegatingCache
+                ? ((DelegatingCache) tokenCacheStore).getDelegateCache() : tokenCacheStore;
+        return store instanceof DefaultTokenCacheStore || store instanceof MemoryTokenCacheStore;
+    }
+
+    /**
+     * Run the task after the tasks previously submitted with the same key, or as soon as a
+     * thread is available if the key is null.
+     */
+    void execute(@Nullable final String key, @NonNull final Runnable task) {
+        updatePoolSize();
+        execute(key, task, mExecutor);
+    }
+
+    /**
+     * Run the task on the given executor after the tasks previously submitted with the same key,
+     * the tasks of the key submitted later wait for it. The task doesn't hold a thread of the pool.
+     */
+    void execute(@Nullable final String key, @NonNull final Runnable task, @NonNull final Executor executor) {
+        final TimedTask timedTask = new TimedTask(task, executor);
+        if (executor == mExecutor) {
+            mQueueDepth.incrementAndGet();
+        }
+
+        if (key == null) {
+            executor.execute(timedTask);
+            return;
+        }
+
+        synchronized (mKeyQueues) {
+            final ArrayDeque<TimedTask> keyQueue = mKeyQueues.get(key);
+            if (keyQueue != null) {
+                keyQueue.add(timedTask);
+                return;
+            }
+
+            mKeyQueues.put(key, new ArrayDeque<TimedTask>());
+        }
+
+        executor.execute(new KeyedTask(key, timedTask));
+    }
+
+    /**
+     * @return Number of tasks submitted to the pool and not started yet.
+     */
+    int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /**
+     * @return Average time in milliseconds the started tasks of the pool waited before running.
+     */
+    long getAverageWaitTimeMillis() {
+        final long startedTaskCount = mStartedTaskCount.get();
+        return startedTaskCount == 0 ? 0 : mTotalWaitTimeMillis.get() / startedTaskCount;
+    }
+
+    /**
+     * @return Longest time in milliseconds a task of the pool waited before running.
+     */
+    long getMaxWaitTimeMillis() {
+        return mMaxWaitTimeMillis.get();
+    }
+
+    private void updatePoolSize() {
+        final int poolSize = AuthenticationSettings.INSTANCE.getRequestThreadPoolSize();
+        synchronized (mExecutor) {
+            if (poolSize > mExecutor.getMaximumPoolSize()) {
+                mExecutor.setMaximumPoolSize(poolSize);
+                mExecutor.setCorePoolSize(poolSize);
+            } else if (poolSize < mExecutor.getMaximumPoolSize()) {
+                mExecutor.setCorePoolSize(poolSize);
+                mExecutor.setMaximumPoolSize(poolSize);
+            }
+        }
+    }
+
+    private void onTaskStarted(final long submitTimeMillis) {
+        mQueueDepth.decrementAndGet();
+        final long waitTimeMillis = System.currentTimeMillis() - submitTimeMillis;
+        mStartedTaskCount.incrementAndGet();
+        mTotalWaitTimeMillis.addAndGet(waitTimeMillis);
+
+        long maxWaitTimeMillis = mMaxWaitTimeMillis.get();
+        while (waitTimeMillis > maxWaitTimeMillis
+                && !mMaxWaitTimeMillis.compareAndSet(maxWaitTimeMillis, waitTimeMillis)) {
+            maxWaitTimeMillis = mMaxWaitTimeMillis.get();
+        }
+
+        Logger.v(TAG, "Task waited " + waitTimeMillis + " ms, " + mQueueDepth.get() + " tasks waiting.");
+    }
+
+    private final class TimedTask implements Runnable {
+        private final Runnable mTask;
+        private final Executor mTargetExecutor;
+        private final long mSubmitTimeMillis = System.currentTimeMillis();
+
+        TimedTask(@NonNull final Runnable task, @NonNull final Executor targetExecutor) {
+            mTask = task;
+            mTargetExecutor = targetExecutor;
+        }
+
+        @Override
+        public void run() {
+            if (mTargetExecutor == mExecutor) {
+                onTaskStarted(mSubmitTimeMillis);
+            }
+
+            mTask.run();
+        }
+    }
+
+    /**
+     * Runs a task, then submits the next task waiting for the same key.
+     */
+    private final class KeyedTask implements Runnable {
+        private final String mKey;
+        private final TimedTask mTask;
+
+        KeyedTask(@NonNull final String key, @NonNull final TimedTask task) {
+            mKey = key;
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mTask.run();
+            } finally {
+                final TimedTask next;
+                synchronized (mKeyQueues) {
+                    next = mKeyQueues.get(mKey).poll();
+                    if (next == null) {
+                        mKeyQueues.remove(mKey);
+                    }
+                }
+
+                if (next != null) {
+                    next.mTargetExecutor.execute(new KeyedTask(mKey, next));
+                }
+            }
+        }
+    }
+}
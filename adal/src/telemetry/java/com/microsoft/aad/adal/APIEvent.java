@@ -78,6 +78,10 @@ final class APIEvent extends DefaultEvent {
         setProperty(EventStrings.API_DEPRECATED, String.valueOf(isDeprecated));
     }
 
+    void setIsCoalesced(final boolean isCoalesced) {
+        setProperty(EventStrings.API_COALESCED, String.valueOf(isCoalesced));
+    }
+
     void setValidationStatus(final String validationStatus) {
         setProperty(EventStrings.AUTHORITY_VALIDATION, validationStatus);
     }
@@ -194,6 +198,7 @@ final class APIEvent extends DefaultEvent {
 
             // API Event specific parameters, push all except the time values
             if (name.equals(EventStrings.AUTHORITY_TYPE) || name.equals(EventStrings.API_DEPRECATED)
+                    || name.equals(EventStrings.API_COALESCED)
                     || name.equals(EventStrings.AUTHORITY_VALIDATION)
                     || name.equals(EventStrings.EXTENDED_EXPIRES_ON_SETTING)
                     || name.equals(EventStrings.PROMPT_BEHAVIOR) || name.equals(EventStrings.WAS_SUCCESSFUL)
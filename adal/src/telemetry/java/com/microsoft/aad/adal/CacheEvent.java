@@ -59,19 +59,37 @@ final class CacheEvent extends DefaultEvent {
         setProperty(EventStrings.TOKEN_TYPE_IS_FRT, String.valueOf(tokenTypeFRT));
     }
 
+    void setCompactionResult(final int scannedCount, final int removedCount, final long reclaimedBytes) {
+        setProperty(EventStrings.CACHE_COMPACTION_SCANNED_COUNT, String.valueOf(scannedCount));
+        setProperty(EventStrings.CACHE_COMPACTION_REMOVED_COUNT, String.valueOf(removedCount));
+        setProperty(EventStrings.CACHE_COMPACTION_RECLAIMED_BYTES, String.valueOf(reclaimedBytes));
+    }
+
     /**
      * Each event chooses which of its members get picked on aggregation.
-     * Cache event adds an event count field
+     * Cache event adds an event count field, compaction events add their results
      * @param dispatchMap the Map that is filled with the aggregated event properties
      */
     @Override
     public void processEvent(final Map<String, String> dispatchMap) {
+        final List<Map.Entry<String, String>> eventList = getEventList();
 
-        if (mEventName != EventStrings.TOKEN_CACHE_LOOKUP) {
+        // Compaction events report what the compaction scanned, removed and reclaimed.
+        if (mEventName == EventStrings.TOKEN_CACHE_COMPACTION) {
+            for (final Map.Entry<String, String> eventKeyValuePair : eventList) {
+                final String name = eventKeyValuePair.getKey();
+                if (name.equals(EventStrings.CACHE_COMPACTION_SCANNED_COUNT)
+                        || name.equals(EventStrings.CACHE_COMPACTION_REMOVED_COUNT)
+                        || name.equals(EventStrings.CACHE_COMPACTION_RECLAIMED_BYTES)) {
+                    dispatchMap.put(name, eventKeyValuePair.getValue());
+                }
+            }
             return;
         }
 
-        final List<Map.Entry<String, String>> eventList = getEventList();
+        if (mEventName != EventStrings.TOKEN_CACHE_LOOKUP) {
+            return;
+        }
 
         // We are keeping track of the number of Cache Events here, first time we insert the CACHE_EVENT_COUNT in the
         // map, next time onwards, we read the value of it and increment by one.
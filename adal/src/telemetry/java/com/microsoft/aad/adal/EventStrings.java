@@ -45,6 +45,8 @@ final class EventStrings {
 
     static final String TOKEN_CACHE_DELETE = EVENT_PREFIX + "token_cache_delete";
 
+    static final String TOKEN_CACHE_COMPACTION = EVENT_PREFIX + "token_cache_compaction";
+
     static final String BROKER_REQUEST_SILENT = EVENT_PREFIX + "broker_request_silent";
 
     static final String BROKER_REQUEST_INTERACTIVE = EVENT_PREFIX + "broker_request_interactive";
@@ -62,6 +64,8 @@ final class EventStrings {
 
     static final String API_DEPRECATED = EVENT_PREFIX + "is_deprecated"; // Android only
 
+    static final String API_COALESCED = EVENT_PREFIX + "is_coalesced"; // Android only
+
     static final String AUTHORITY_VALIDATION = EVENT_PREFIX + "authority_validation_status";
 
     static final String PROMPT_BEHAVIOR = EVENT_PREFIX + "prompt_behavior";
@@ -122,6 +126,12 @@ final class EventStrings {
 
     static final String CACHE_EVENT_COUNT = EVENT_PREFIX + "cache_event_count";
 
+    static final String CACHE_COMPACTION_SCANNED_COUNT = EVENT_PREFIX + "compaction_scanned_count";
+
+    static final String CACHE_COMPACTION_REMOVED_COUNT = EVENT_PREFIX + "compaction_removed_count";
+
+    static final String CACHE_COMPACTION_RECLAIMED_BYTES = EVENT_PREFIX + "compaction_reclaimed_bytes";
+
     static final String UI_EVENT_COUNT = EVENT_PREFIX + "ui_event_count";
 
     static final String HTTP_EVENT_COUNT = EVENT_PREFIX + "http_event_count";